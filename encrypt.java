@@ -1,14 +1,79 @@
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class App extends JFrame {
 
     private JTextField passwordField;
+    private JCheckBox compressCheckBox;
+    private JCheckBox inPlaceCheckBox;
+    private JButton encryptButton;
+    private JButton decryptButton;
+    private JButton cancelButton;
     private JLabel statusLabel;
+    // Fortschritt des laufenden Auftrags, null wenn keiner läuft
+    private CryptoProgress currentProgress;
 
     public App() {
         // Setzt den Titel des Fensters
@@ -16,7 +81,7 @@ public class App extends JFrame {
         // Legt die Standardoperation beim Schließen des Fensters fest
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         // Setzt die Größe des Fensters
-        setSize(500, 300);
+        setSize(620, 300);
         // Zentriert das Fenster auf dem Bildschirm
         setLocationRelativeTo(null);
         // Legt das Layout des Hauptfensters fest
@@ -35,14 +100,24 @@ public class App extends JFrame {
         passwordField = new JPasswordField(20); // 20 Zeichen Breite
         passwordField.setFont(new Font("Inter", Font.PLAIN, 16));
         inputPanel.add(passwordField);
+
+        // Erstellt ein Kontrollkästchen für die Kompression vor dem Verschlüsseln
+        compressCheckBox = new JCheckBox("compress");
+        compressCheckBox.setFont(new Font("Inter", Font.PLAIN, 14));
+        inputPanel.add(compressCheckBox);
+
+        // Erstellt ein Kontrollkästchen für die Verschlüsselung an Ort und Stelle (ohne Kopie der Datei)
+        inPlaceCheckBox = new JCheckBox("in place");
+        inPlaceCheckBox.setFont(new Font("Inter", Font.PLAIN, 14));
+        inputPanel.add(inPlaceCheckBox);
         add(inputPanel, BorderLayout.NORTH); // Fügt das Eingabepanel oben hinzu
 
         // Erstellt ein Panel für die Schaltflächen
-        JPanel buttonPanel = new JPanel(new GridLayout(1, 2, 15, 0)); // 1 Reihe, 2 Spalten, 15 Pixel horizontaler Abstand
+        JPanel buttonPanel = new JPanel(new GridLayout(1, 3, 15, 0)); // 1 Reihe, 3 Spalten, 15 Pixel horizontaler Abstand
         buttonPanel.setBorder(BorderFactory.createEmptyBorder(0, 50, 20, 50)); // Polsterung
 
         // Erstellt die Schaltfläche zum Verschlüsseln
-        JButton encryptButton = new JButton("encrypt");
+        encryptButton = new JButton("encrypt");
         encryptButton.setFont(new Font("Inter", Font.BOLD, 16));
         encryptButton.setBackground(new Color(60, 179, 113)); // Mittelmeergrün
         encryptButton.setForeground(Color.WHITE);
@@ -56,7 +131,7 @@ public class App extends JFrame {
         buttonPanel.add(encryptButton);
 
         // Erstellt die Schaltfläche zum Entschlüsseln
-        JButton decryptButton = new JButton("decrypt");
+        decryptButton = new JButton("decrypt");
         decryptButton.setFont(new Font("Inter", Font.BOLD, 16));
         decryptButton.setBackground(new Color(70, 130, 180)); // Stahlblau
         decryptButton.setForeground(Color.WHITE);
@@ -68,6 +143,21 @@ public class App extends JFrame {
         decryptButton.setCursor(new Cursor(Cursor.HAND_CURSOR));
         decryptButton.addActionListener(e -> decryptFile()); // Aktion beim Klicken
         buttonPanel.add(decryptButton);
+
+        // Erstellt die Schaltfläche zum Abbrechen des laufenden Auftrags
+        cancelButton = new JButton("cancel");
+        cancelButton.setFont(new Font("Inter", Font.BOLD, 16));
+        cancelButton.setBackground(new Color(205, 92, 92)); // Indischrot
+        cancelButton.setForeground(Color.WHITE);
+        cancelButton.setFocusPainted(false);
+        cancelButton.setBorder(BorderFactory.createCompoundBorder(
+                BorderFactory.createLineBorder(new Color(178, 34, 34), 2), // Ziegelroter Rand
+                BorderFactory.createEmptyBorder(10, 20, 10, 20)
+        ));
+        cancelButton.setCursor(new Cursor(Cursor.HAND_CURSOR));
+        cancelButton.setEnabled(false); // Nur während eines Auftrags aktiv
+        cancelButton.addActionListener(e -> cancelJob()); // Aktion beim Klicken
+        buttonPanel.add(cancelButton);
         add(buttonPanel, BorderLayout.CENTER); // Fügt das Schaltflächenpanel in die Mitte hinzu
 
         // Erstellt eine Statusleiste am unteren Rand
@@ -102,31 +192,33 @@ public class App extends JFrame {
             // Erstellt den Namen der Ausgabedatei mit der Endung .fdsecure
             File outputFile = new File(inputFile.getAbsolutePath() + ".fdsecure");
 
-            try {
-                // Liest den Inhalt der Eingabedatei in ein Byte-Array
-                byte[] fileBytes = readAllBytes(inputFile);
-                // Erzeugt einen Schlüssel aus dem Passwort
-                byte[] key = generateKey(password);
+            boolean compress = compressCheckBox.isSelected();
+            boolean inPlace = inPlaceCheckBox.isSelected();
+            if (compress && inPlace) {
+                showMessage("Error", "Compression is not available for in-place encryption.",
+                        JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            runInBackground("Encrypting", progress -> {
+                // Leitet die Schlüssel mit zufälligem Salt aus dem Passwort ab
+                FdsKeys keys = new FdsKeys(password.toCharArray());
 
-                // Verschlüsselt die Dateibytes mit dem Schlüssel (XOR-Operation)
-                byte[] encryptedBytes = new byte[fileBytes.length];
-                for (int i = 0; i < fileBytes.length; i++) {
-                    encryptedBytes[i] = (byte) (fileBytes[i] ^ key[i % key.length]); // XOR-Operation
+                // Verschlüsselt (und komprimiert ggf.) die Segmente der Datei parallel auf allen Kernen
+                CryptoEngine engine = new CryptoEngine(CryptoEngine.defaultThreads());
+                engine.setCompression(compress);
+                engine.setProgress(progress);
+                if (inPlace) {
+                    // Überschreibt die Datei abschnittsweise und benennt sie am Ende um
+                    engine.encryptInPlace(inputFile, keys);
+                } else {
+                    engine.encrypt(inputFile, outputFile, keys);
                 }
-
-                // Schreibt die verschlüsselten Bytes in die Ausgabedatei
-                writeAllBytes(outputFile, encryptedBytes);
+            }, () -> {
                 // Aktualisiert die Statusleiste
                 statusLabel.setText("File successfully encrypted: " + outputFile.getName());
                 // Zeigt eine Erfolgsmeldung an
                 showMessage("success", "File successfully encrypted!", JOptionPane.INFORMATION_MESSAGE);
-
-            } catch (IOException | NoSuchAlgorithmException ex) {
-                // Behandelt Fehler beim Lesen, Schreiben oder bei der Schlüsselgenerierung
-                statusLabel.setText("Error: " + ex.getMessage());
-                showMessage("Error", "Error:" + ex.getMessage(), JOptionPane.ERROR_MESSAGE);
-                ex.printStackTrace();
-            }
+            });
         }
     }
 
@@ -171,55 +263,101 @@ public class App extends JFrame {
             String outputFileName = inputFile.getName().substring(0, inputFile.getName().length() - ".fdsecure".length());
             File outputFile = new File(inputFile.getParent(), outputFileName);
 
-            try {
-                // Liest den Inhalt der verschlüsselten Datei in ein Byte-Array
-                byte[] encryptedBytes = readAllBytes(inputFile);
-                // Erzeugt den Schlüssel aus dem Passwort
-                byte[] key = generateKey(password);
-
-                // Entschlüsselt die Bytes mit dem Schlüssel (erneute XOR-Operation)
-                byte[] decryptedBytes = new byte[encryptedBytes.length];
-                for (int i = 0; i < encryptedBytes.length; i++) {
-                    decryptedBytes[i] = (byte) (encryptedBytes[i] ^ key[i % key.length]); // XOR-Operation
-                }
+            runInBackground("Decrypting", progress -> {
+                // Bindet das Passwort; Salt und Parameter stammen aus dem Header der Datei
+                FdsKeys keys = new FdsKeys(password.toCharArray());
 
-                // Schreibt die entschlüsselten Bytes in die Ausgabedatei
-                writeAllBytes(outputFile, decryptedBytes);
+                // Entschlüsselt die Datei (segmentiertes oder altes Format)
+                CryptoEngine engine = new CryptoEngine(CryptoEngine.defaultThreads());
+                engine.setProgress(progress);
+                engine.decrypt(inputFile, outputFile, keys);
+            }, () -> {
                 // Aktualisiert die Statusleiste
                 statusLabel.setText(": " + outputFile.getName());
                 // Zeigt eine Erfolgsmeldung an
                 showMessage("Succsess", "File successfully decrypted and exported!", JOptionPane.INFORMATION_MESSAGE);
+            });
+        }
+    }
 
-            } catch (IOException | NoSuchAlgorithmException ex) {
-                // Behandelt Fehler beim Lesen, Schreiben oder bei der Schlüsselgenerierung
-                statusLabel.setText("Error: " + ex.getMessage());
-                showMessage("Error", "Error: " + ex.getMessage(), JOptionPane.ERROR_MESSAGE);
-                ex.printStackTrace();
+    // Ein Ver- oder Entschlüsselungsauftrag, der außerhalb des Event-Dispatch-Threads läuft
+    @FunctionalInterface
+    private interface CryptoJob {
+        void run(CryptoProgress progress) throws IOException, GeneralSecurityException;
+    }
+
+    // Führt den Auftrag in einem SwingWorker aus, damit das Fenster bedienbar bleibt; die Statusleiste
+    // zeigt währenddessen Durchsatz und Restzeit an
+    private void runInBackground(String action, CryptoJob job, Runnable onSuccess) {
+        CryptoProgress progress = new CryptoProgress();
+        currentProgress = progress;
+        setBusy(true);
+        statusLabel.setText(action + "...");
+        Timer timer = new Timer(250, e -> statusLabel.setText(formatProgress(action, progress)));
+        timer.start();
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                job.run(progress);
+                return null;
             }
-        }
+
+            @Override
+            protected void done() {
+                timer.stop();
+                currentProgress = null;
+                setBusy(false);
+                try {
+                    get();
+                    onSuccess.run();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof CancellationException) {
+                        // Die Engine hat die unvollständige Ausgabedatei bereits entfernt; an Ort und Stelle
+                        // bleibt stattdessen das Journal zum Fortsetzen stehen
+                        String message = cause.getMessage();
+                        statusLabel.setText(message == null || message.equals("Cancelled")
+                                ? "Cancelled, partial output removed." : message + ".");
+                    } else if (cause instanceof WrongPasswordException) {
+                        // Falsches Passwort wird anhand des Headers erkannt, bevor Daten geschrieben werden
+                        statusLabel.setText("Error: " + cause.getMessage());
+                        showMessage("Error", "No/wrong password entered.", JOptionPane.WARNING_MESSAGE);
+                    } else {
+                        // Behandelt Fehler beim Lesen, Schreiben oder bei der Schlüsselgenerierung
+                        statusLabel.setText("Error: " + cause.getMessage());
+                        showMessage("Error", "Error: " + cause.getMessage(), JOptionPane.ERROR_MESSAGE);
+                        cause.printStackTrace();
+                    }
+                }
+            }
+        }.execute();
     }
 
-    // Hilfsmethode zum Lesen aller Bytes aus einer Datei
-    private byte[] readAllBytes(File file) throws IOException {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[(int) file.length()];
-            fis.read(buffer);
-            return buffer;
+    // Bricht den laufenden Auftrag zwischen zwei Segmenten ab
+    private void cancelJob() {
+        if (currentProgress != null) {
+            currentProgress.cancel();
+            cancelButton.setEnabled(false);
+            statusLabel.setText("Cancelling...");
         }
     }
 
-    // Hilfsmethode zum Schreiben aller Bytes in eine Datei
-    private void writeAllBytes(File file, byte[] data) throws IOException {
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(data);
-        }
+    // Sperrt die Schaltflächen, solange ein Auftrag läuft
+    private void setBusy(boolean busy) {
+        encryptButton.setEnabled(!busy);
+        decryptButton.setEnabled(!busy);
+        cancelButton.setEnabled(busy);
     }
 
-    // Generiert einen Schlüssel aus dem Passwort mithilfe von SHA-256
-    private byte[] generateKey(String password) throws NoSuchAlgorithmException {
-        // Verwendet SHA-256, um einen Hash des Passworts zu erzeugen
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        return digest.digest(password.getBytes());
+    // z. B. "Encrypting 42% - 512.3 MB/s - ETA 0:07"
+    private static String formatProgress(String action, CryptoProgress progress) {
+        long total = progress.total();
+        long eta = progress.etaSeconds();
+        return String.format("%s %d%% - %.1f MB/s - ETA %s", action,
+                total <= 0 ? 0 : progress.done() * 100 / total, progress.bytesPerSecond() / (1 << 20),
+                eta < 0 ? "--:--" : String.format("%d:%02d", eta / 60, eta % 60));
     }
 
     // Hilfsmethode zum Anzeigen von Nachrichtenboxen
@@ -229,8 +367,2682 @@ public class App extends JFrame {
 
     // Hauptmethode zum Starten der Anwendung
     public static void main(String[] args) {
+        // --bench misst die Schlüsselableitung und die Verschlüsselungspfade
+        if (args.length > 0 && args[0].equals("--bench")) {
+            System.exit(Benchmark.run(args));
+        }
+        // Mit Argumenten läuft die Anwendung ohne Fenster als Kommandozeilenwerkzeug
+        if (args.length > 0) {
+            System.exit(BatchCli.run(args));
+        }
         // Führt die GUI-Erstellung im Event-Dispatch-Thread aus
         SwingUtilities.invokeLater(App::new);
     }
 }
 
+// Kommandozeilenmodus ohne Fenster: verschlüsselt bzw. entschlüsselt Dateien und ganze
+// Verzeichnisbäume mit einem begrenzten Worker-Pool, z. B.
+//   java encrypt.java --encrypt --recursive /backup --threads 8 --password-env FDS_PASSWORD
+// oder gibt mit --cat nur einen Ausschnitt einer verschlüsselten Datei auf stdout aus.
+// Mit --pack, --list und --extract werden Container-Archive (siehe FdsContainer) bearbeitet.
+final class BatchCli {
+
+    private static final String EXTENSION = ".fdsecure";
+
+    private boolean encrypt;
+    private boolean cat;
+    private File packTarget;
+    private boolean list;
+    private boolean extract;
+    private String entry;
+    private Path outputDir;
+    private long offset;
+    private long length = -1;
+    private boolean recursive;
+    private boolean incremental;
+    private boolean compress;
+    private boolean inPlace;
+    private int threads = CryptoEngine.defaultThreads();
+    private String passwordEnv;
+    private String passwordFile;
+    private final List<Path> paths = new ArrayList<>();
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final LongAdder bytes = new LongAdder();
+
+    private BatchCli() {
+    }
+
+    // Liefert den Exit-Code: 0 bei Erfolg, 1 bei fehlgeschlagenen Dateien, 2 bei falscher Bedienung
+    static int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        BatchCli cli = new BatchCli();
+        try {
+            if (!cli.parse(args)) {
+                printUsage();
+                return 2;
+            }
+            return cli.execute();
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            printUsage();
+            return 2;
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return 1;
+        }
+    }
+
+    private boolean parse(String[] args) {
+        boolean modeSet = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--encrypt":
+                case "-e":
+                    encrypt = true;
+                    modeSet = true;
+                    break;
+                case "--decrypt":
+                case "-d":
+                    encrypt = false;
+                    modeSet = true;
+                    break;
+                case "--cat":
+                    cat = true;
+                    modeSet = true;
+                    break;
+                case "--pack":
+                    packTarget = new File(value(args, ++i));
+                    modeSet = true;
+                    break;
+                case "--list":
+                    list = true;
+                    modeSet = true;
+                    break;
+                case "--extract":
+                    extract = true;
+                    modeSet = true;
+                    break;
+                case "--entry":
+                    entry = value(args, ++i);
+                    break;
+                case "--output":
+                    outputDir = Paths.get(value(args, ++i));
+                    break;
+                case "--offset":
+                    offset = Long.parseLong(value(args, ++i));
+                    break;
+                case "--length":
+                    length = Long.parseLong(value(args, ++i));
+                    break;
+                case "--recursive":
+                case "-r":
+                    recursive = true;
+                    break;
+                case "--incremental":
+                case "-i":
+                    incremental = true;
+                    break;
+                case "--compress":
+                case "-z":
+                    compress = true;
+                    break;
+                case "--in-place":
+                    inPlace = true;
+                    break;
+                case "--threads":
+                case "-t":
+                    threads = Integer.parseInt(value(args, ++i));
+                    if (threads < 1) {
+                        throw new IllegalArgumentException("--threads must be >= 1");
+                    }
+                    break;
+                case "--password-env":
+                    passwordEnv = value(args, ++i);
+                    break;
+                case "--password-file":
+                    passwordFile = value(args, ++i);
+                    break;
+                case "--help":
+                case "-h":
+                    return false;
+                default:
+                    if (args[i].startsWith("-")) {
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    }
+                    paths.add(Paths.get(args[i]));
+            }
+        }
+        if (inPlace && (!encrypt || cat || packTarget != null || list || extract || incremental || compress)) {
+            throw new IllegalArgumentException("--in-place only works with --encrypt, without --incremental or --compress");
+        }
+        return modeSet && !paths.isEmpty();
+    }
+
+    private static String value(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: App (--encrypt [--incremental | --in-place] [--compress] | --decrypt) [--recursive]");
+        System.err.println("           [--threads N]");
+        System.err.println("           [--password-env VAR | --password-file FILE] <file or directory>...");
+        System.err.println("       App --cat [--offset N] [--length N] [--password-env VAR | --password-file FILE] <file>");
+        System.err.println("       App --pack <archive> [--password-env VAR | --password-file FILE]");
+        System.err.println("           <file or directory>...");
+        System.err.println("       App (--list | --extract [--entry NAME] [--output DIR])");
+        System.err.println("           [--password-env VAR | --password-file FILE] <archive>");
+    }
+
+    private int execute() throws IOException {
+        FdsKeys keys = new FdsKeys(readPassword());
+        if (cat) {
+            return catRange(keys);
+        }
+        if (packTarget != null || list || extract) {
+            return container(keys);
+        }
+        // Große Einzeldateien nutzen die übrigen Kerne, wenn weniger Worker als Kerne laufen
+        CryptoEngine engine = new CryptoEngine(Math.max(1, CryptoEngine.defaultThreads() / threads));
+        engine.setCompression(compress);
+        // Begrenzte Warteschlange: ist sie voll, arbeitet der Verzeichnisdurchlauf selbst mit
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        long start = System.nanoTime();
+        try {
+            for (Path path : paths) {
+                try (Stream<Path> files = Files.isDirectory(path)
+                        ? (recursive ? Files.walk(path) : Files.list(path))
+                        : Stream.of(path)) {
+                    files.filter(Files::isRegularFile)
+                            .filter(this::isCandidate)
+                            .forEach(file -> pool.execute(() -> process(engine, keys, file)));
+                }
+            }
+        } catch (UncheckedIOException ex) {
+            // Fehler beim Verzeichnisdurchlauf
+            throw ex.getCause();
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        double megabytes = bytes.sum() / (1024.0 * 1024.0);
+        System.out.printf("%s %d file(s), %.1f MB in %.2f s (%.1f MB/s, %.1f files/s), %d failed%n",
+                encrypt ? "Encrypted" : "Decrypted", processed.get(), megabytes, seconds, megabytes / seconds,
+                processed.get() / seconds, failed.get());
+        return failed.get() == 0 ? 0 : 1;
+    }
+
+    // Entschlüsselt nur die Segmente, die den angefragten Bereich abdecken
+    private int catRange(FdsKeys keys) throws IOException {
+        if (paths.size() != 1) {
+            throw new IllegalArgumentException("--cat expects exactly one file");
+        }
+        try (FdsSeekableChannel channel = FdsSeekableChannel.open(paths.get(0).toFile(), keys)) {
+            long end = length < 0 ? channel.size() : Math.min(channel.size(), offset + length);
+            channel.position(offset);
+            ByteBuffer buffer = ByteBuffer.allocate(CryptoEngine.BUFFER_SIZE);
+            long remaining = end - offset;
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                System.out.write(buffer.array(), 0, read);
+                remaining -= read;
+            }
+            System.out.flush();
+            return 0;
+        } catch (GeneralSecurityException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return 1;
+        }
+    }
+
+    // Packt, listet oder entpackt ein Container-Archiv mit einer einzigen Schlüsselableitung
+    private int container(FdsKeys keys) throws IOException {
+        if (packTarget == null && paths.size() != 1) {
+            throw new IllegalArgumentException("--list and --extract expect exactly one archive");
+        }
+        long start = System.nanoTime();
+        try {
+            if (packTarget != null) {
+                List<FdsContainer.Entry> entries = FdsContainer.pack(paths, packTarget, keys,
+                        SegmentCipher.defaultId());
+                double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+                double megabytes = packTarget.length() / (1024.0 * 1024.0);
+                System.out.printf("Packed %d file(s) into %s, %.1f MB in %.2f s (%.1f MB/s, %.1f files/s)%n",
+                        entries.size(), packTarget, megabytes, seconds, megabytes / seconds, entries.size() / seconds);
+            } else if (list) {
+                for (FdsContainer.Entry item : FdsContainer.list(paths.get(0).toFile(), keys)) {
+                    System.out.printf("%12d  %s%n", item.length, item.name);
+                }
+            } else {
+                Path target = outputDir != null ? outputDir : Paths.get("");
+                int count = FdsContainer.extract(paths.get(0).toFile(), keys, entry, target);
+                System.out.printf("Extracted %d file(s) to %s%n", count, target.toAbsolutePath());
+            }
+            return 0;
+        } catch (GeneralSecurityException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return 1;
+        }
+    }
+
+    // Beim Verschlüsseln werden bereits verschlüsselte Dateien, Manifeste und Journale übersprungen
+    private boolean isCandidate(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        if (!encrypt) {
+            return name.endsWith(EXTENSION);
+        }
+        return !name.endsWith(EXTENSION) && !name.endsWith(EXTENSION + ".manifest")
+                && !name.endsWith(EXTENSION + ".journal");
+    }
+
+    private void process(CryptoEngine engine, FdsKeys keys, Path file) {
+        File input = file.toFile();
+        String name = input.getName();
+        long size = input.length();
+        try {
+            if (encrypt && inPlace) {
+                engine.encryptInPlace(input, keys);
+            } else if (encrypt && incremental) {
+                engine.encryptIncremental(input, new File(input.getPath() + EXTENSION), keys);
+            } else if (encrypt) {
+                engine.encrypt(input, new File(input.getPath() + EXTENSION), keys);
+            } else {
+                engine.decrypt(input, new File(input.getParent(), name.substring(0, name.length() - EXTENSION.length())),
+                        keys);
+            }
+            processed.incrementAndGet();
+            bytes.add(size);
+        } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+            failed.incrementAndGet();
+            System.err.println("Error: " + file + ": " + ex.getMessage());
+        }
+    }
+
+    // Passwort aus Umgebungsvariable, Datei oder interaktiv von der Konsole
+    private char[] readPassword() throws IOException {
+        if (passwordEnv != null) {
+            String value = System.getenv(passwordEnv);
+            if (value == null || value.isEmpty()) {
+                throw new IllegalArgumentException("Environment variable " + passwordEnv + " is not set");
+            }
+            return value.toCharArray();
+        }
+        if (passwordFile != null) {
+            String value = Files.readAllLines(Paths.get(passwordFile), StandardCharsets.UTF_8).stream()
+                    .findFirst().orElse("");
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("Password file is empty: " + passwordFile);
+            }
+            return value.toCharArray();
+        }
+        Console console = System.console();
+        char[] password = console != null
+                ? console.readPassword("Password: ")
+                : Optional.ofNullable(new BufferedReader(new InputStreamReader(System.in)).readLine())
+                        .orElse("").toCharArray();
+        if (password == null || password.length == 0) {
+            throw new IllegalArgumentException("No password entered");
+        }
+        return password;
+    }
+}
+
+// Benchmark ohne Fenster und ohne externe Werkzeuge, z. B.
+//   java encrypt.java --bench --sizes 1,64,512 --rounds 3 --dir /mnt/disk
+// Misst die Schlüsselableitung sowie Ver- und Entschlüsselung je Verfahren und Dateigröße
+// (Bestwert aus den Runden nach einem Aufwärmlauf) in MB/s und die Allokation pro Lauf.
+final class Benchmark {
+
+    private final List<Integer> sizes = new ArrayList<>(Arrays.asList(1, 64, 256));
+    private Path dir = Paths.get(System.getProperty("java.io.tmpdir"));
+    private int rounds = 3;
+
+    private Benchmark() {
+    }
+
+    static int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        Benchmark benchmark = new Benchmark();
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--sizes":
+                        benchmark.sizes.clear();
+                        for (String size : args[++i].split(",")) {
+                            benchmark.sizes.add(Integer.parseInt(size.trim()));
+                        }
+                        break;
+                    case "--dir":
+                        benchmark.dir = Paths.get(args[++i]);
+                        break;
+                    case "--rounds":
+                        benchmark.rounds = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (RuntimeException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.err.println("Usage: App --bench [--sizes MB,MB,...] [--dir DIR] [--rounds N]");
+            return 2;
+        }
+        try {
+            benchmark.execute();
+            return 0;
+        } catch (IOException | GeneralSecurityException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return 1;
+        }
+    }
+
+    private void execute() throws IOException, GeneralSecurityException {
+        Path work = Files.createTempDirectory(dir, "fdsecure-bench");
+        char[] password = "benchmark".toCharArray();
+        try {
+            File plain = work.resolve("plain").toFile();
+            File encrypted = work.resolve("plain.fdsecure").toFile();
+            File decrypted = work.resolve("decrypted").toFile();
+            System.out.printf("Threads: %d, directory: %s%n", CryptoEngine.defaultThreads(), dir);
+
+            // Jede Runde leitet mit neuem Salt ab; die leere Datei kostet sonst nichts
+            writeRandom(plain, 0);
+            CryptoEngine engine = new CryptoEngine(CryptoEngine.defaultThreads());
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round <= rounds; round++) {
+                long start = System.nanoTime();
+                engine.encrypt(plain, encrypted, new FdsKeys(password));
+                best = round == 0 ? best : Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("Key derivation (PBKDF2-SHA256, %d iterations): %.1f ms%n",
+                    new FdsKeys(password).iterations(), best / 1e6);
+
+            FdsKeys keys = new FdsKeys(password);
+            for (int size : sizes) {
+                writeRandom(plain, (long) size << 20);
+                for (byte cipherId : new byte[] {SegmentCipher.AES_GCM, SegmentCipher.AES_CTR, SegmentCipher.XOR}) {
+                    CryptoEngine cipherEngine = new CryptoEngine(CryptoEngine.defaultThreads(), cipherId);
+                    report("encrypt", cipherId, size, measure(() -> cipherEngine.encrypt(plain, encrypted, keys)));
+                    report("decrypt", cipherId, size, measure(() -> cipherEngine.decrypt(encrypted, decrypted, keys)));
+                    if (Files.mismatch(plain.toPath(), decrypted.toPath()) >= 0) {
+                        throw new IOException("Round trip does not match for cipher " + cipherId);
+                    }
+                }
+                // Dateien ohne Header werden mit dem alten XOR-Verfahren entschlüsselt
+                report("legacy decrypt", (byte) -1, size, measure(() -> engine.decrypt(plain, decrypted, keys)));
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(work)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(work);
+        }
+    }
+
+    private interface Run {
+        void run() throws IOException, GeneralSecurityException;
+    }
+
+    // Liefert {beste Laufzeit in ns, allozierte Bytes des besten Laufs}
+    private long[] measure(Run run) throws IOException, GeneralSecurityException {
+        long[] best = {Long.MAX_VALUE, 0};
+        for (int round = 0; round <= rounds; round++) {
+            AllocationMeter meter = new AllocationMeter();
+            long start = System.nanoTime();
+            run.run();
+            long nanos = System.nanoTime() - start;
+            long allocated = meter.stop();
+            // Runde 0 wärmt den JIT auf und zählt nicht
+            if (round > 0 && nanos < best[0]) {
+                best[0] = nanos;
+                best[1] = allocated;
+            }
+        }
+        return best;
+    }
+
+    private static void report(String operation, byte cipherId, int size, long[] result) {
+        String cipher = cipherId == SegmentCipher.AES_GCM ? "gcm"
+                : cipherId == SegmentCipher.AES_CTR ? "ctr" : "xor";
+        double seconds = Math.max(1e-9, result[0] / 1e9);
+        System.out.printf("%-15s %-4s %6d MB %10.1f MB/s %10.1f MB alloc (%.1f MB/s)%n", operation, cipher, size,
+                size / seconds, result[1] / (1024.0 * 1024.0), result[1] / (1024.0 * 1024.0) / seconds);
+    }
+
+    private static void writeRandom(File file, long length) throws IOException {
+        SplittableRandom random = new SplittableRandom(42);
+        byte[] block = new byte[CryptoEngine.BUFFER_SIZE];
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < length; written += block.length) {
+                for (int i = 0; i < block.length; i += 8) {
+                    long value = random.nextLong();
+                    for (int j = 0; j < 8; j++) {
+                        block[i + j] = (byte) (value >>> (8 * j));
+                    }
+                }
+                out.write(block, 0, (int) Math.min(block.length, length - written));
+            }
+        }
+    }
+
+    // Summiert die Allokationen aller Threads. Der Sampler merkt sich den letzten Stand jedes
+    // Threads, so zählen auch die Pipeline-Threads mit, die vor dem Ende des Laufs enden.
+    private static final class AllocationMeter {
+
+        private final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final Map<Long, Long> baseline = new HashMap<>();
+        private final Map<Long, Long> latest = new ConcurrentHashMap<>();
+        private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "allocation-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private volatile long samplerId = -1;
+
+        AllocationMeter() {
+            sample(baseline);
+            sampler.scheduleAtFixedRate(() -> {
+                samplerId = Thread.currentThread().getId();
+                sample(latest);
+            }, 0, 5, TimeUnit.MILLISECONDS);
+        }
+
+        long stop() {
+            sampler.shutdownNow();
+            try {
+                sampler.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            sample(latest);
+            long total = 0;
+            for (Map.Entry<Long, Long> thread : latest.entrySet()) {
+                if (thread.getKey() != samplerId) {
+                    total += thread.getValue() - baseline.getOrDefault(thread.getKey(), 0L);
+                }
+            }
+            return total;
+        }
+
+        private void sample(Map<Long, Long> into) {
+            long[] ids = threads.getAllThreadIds();
+            long[] bytes = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] >= 0) {
+                    into.put(ids[i], bytes[i]);
+                }
+            }
+        }
+    }
+}
+
+// Verschlüsselungs-Engine: verarbeitet Dateien in Blöcken fester Größe mit konstantem Speicherbedarf.
+// Das segmentierte .fdsecure-Format wird parallel auf allen Kernen verarbeitet,
+// Dateien im alten Format (ohne Header) werden weiterhin sequenziell entschlüsselt.
+final class CryptoEngine {
+
+    // Größe des Arbeitspuffers für das alte Format (1 MiB)
+    static final int BUFFER_SIZE = 1 << 20;
+    // Standardgröße eines Segments im segmentierten Format (1 MiB)
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    // Größe eines gemappten Fensters im MMAP-Modus (64 MiB)
+    static final int MAP_WINDOW_SIZE = 64 << 20;
+    // Größe eines Abschnitts beim Verschlüsseln an Ort und Stelle (16 MiB), überschreibbar mit
+    // -Dfdsecure.inPlaceChunk=Bytes; wird auf ganze Segmente abgerundet
+    static final int IN_PLACE_CHUNK = Integer.getInteger("fdsecure.inPlaceChunk", 16 << 20);
+
+    // I/O-Verfahren: Positions-I/O über Heap-Puffer oder direkt in gemappten Fenstern
+    enum IoMode {
+        AUTO, STREAM, MMAP
+    }
+
+    // Kompressionsstufe für Deflate, überschreibbar mit -Dfdsecure.compressionLevel=0..9
+    static final int COMPRESSION_LEVEL = Integer.getInteger("fdsecure.compressionLevel", Deflater.BEST_SPEED);
+    // Modus-Byte am Anfang jedes komprimierten Segments
+    private static final byte SEGMENT_STORED = 0;
+    private static final byte SEGMENT_DEFLATED = 1;
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(COMPRESSION_LEVEL, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final int threads;
+    private final byte cipherId;
+    private boolean compress = Boolean.getBoolean("fdsecure.compress");
+    private IoMode ioMode = defaultIoMode();
+    private long mmapThreshold = Long.getLong("fdsecure.mmapThreshold", 256L << 20);
+    private CryptoProgress progress;
+
+    CryptoEngine(int threads) {
+        this(threads, SegmentCipher.defaultId());
+    }
+
+    CryptoEngine(int threads, byte cipherId) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1");
+        }
+        SegmentCipher.overhead(cipherId); // validiert die Cipher-ID
+        this.threads = threads;
+        this.cipherId = cipherId;
+    }
+
+    // Anzahl der Threads, überschreibbar mit -Dfdsecure.threads=N
+    static int defaultThreads() {
+        return Integer.getInteger("fdsecure.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    // I/O-Verfahren, überschreibbar mit -Dfdsecure.io=auto|stream|mmap
+    static IoMode defaultIoMode() {
+        return IoMode.valueOf(System.getProperty("fdsecure.io", "auto").toUpperCase());
+    }
+
+    void setIoMode(IoMode ioMode) {
+        this.ioMode = ioMode;
+    }
+
+    // Ab dieser Dateigröße wählt AUTO den MMAP-Modus, überschreibbar mit -Dfdsecure.mmapThreshold=Bytes
+    void setMmapThreshold(long mmapThreshold) {
+        this.mmapThreshold = mmapThreshold;
+    }
+
+    // Komprimiert die Segmente vor der Verschlüsselung, Standard über -Dfdsecure.compress=true
+    void setCompression(boolean compress) {
+        this.compress = compress;
+    }
+
+    // Meldet den Fortschritt und prüft bei jedem Segment, ob der Auftrag abgebrochen wurde
+    void setProgress(CryptoProgress progress) {
+        this.progress = progress;
+    }
+
+    // Komprimierte Dateien haben keine festen Segmentpositionen und werden nie gemappt
+    private boolean useMapping(FdsHeader header) {
+        return !header.isCompressed()
+                && (ioMode == IoMode.MMAP || (ioMode == IoMode.AUTO && header.plainLength >= mmapThreshold));
+    }
+
+    // Verschlüsselt eine Datei in das segmentierte .fdsecure-Format
+    void encrypt(File inputFile, File outputFile, FdsKeys keys) throws IOException, GeneralSecurityException {
+        encrypt(inputFile, outputFile, keys, FdsHeader.create(cipherId, compress ? FdsHeader.FLAG_COMPRESSED : 0,
+                DEFAULT_SEGMENT_SIZE, inputFile.length(), keys));
+    }
+
+    // Verschlüsselt mit einem vorgegebenen Header; die Ausgabe hängt nicht von der Thread-Anzahl ab
+    void encrypt(File inputFile, File outputFile, FdsKeys keys, FdsHeader header)
+            throws IOException, GeneralSecurityException {
+        encrypt(inputFile, outputFile, keys, header, null);
+    }
+
+    // Inkrementelle Verschlüsselung: neben der Ausgabedatei liegt ein Manifest mit einem HMAC pro
+    // Klartextsegment. Passt das Manifest zur vorhandenen Ausgabedatei, werden nur geänderte Segmente
+    // neu geschrieben (mit neuer Segment-Nonce), sonst wird die Datei vollständig verschlüsselt.
+    // Liefert die Anzahl der geschriebenen Segmente.
+    long encryptIncremental(File inputFile, File outputFile, FdsKeys keys)
+            throws IOException, GeneralSecurityException {
+        File manifestFile = FdsManifest.fileFor(outputFile);
+        FdsHeader previous = null;
+        FdsManifest manifest = null;
+        // Komprimierte Dateien haben keine festen Segmentpositionen und werden immer vollständig geschrieben
+        if (!compress && outputFile.isFile() && manifestFile.isFile() && FdsHeader.isSegmented(outputFile)) {
+            try (FileChannel existing = FileChannel.open(outputFile.toPath(), StandardOpenOption.READ)) {
+                previous = FdsHeader.read(existing);
+                keys.verify(previous);
+                manifest = FdsManifest.read(manifestFile, keys, previous);
+                if (previous.isCompressed() || existing.size() != previous.encryptedLength()) {
+                    manifest = null;
+                }
+            } catch (IOException | GeneralSecurityException ex) {
+                // Anderes Passwort, beschädigte Datei oder fremdes Manifest: vollständig neu verschlüsseln
+                manifest = null;
+            }
+        }
+        // Ein während des Laufs abgebrochenes Manifest darf nicht wiederverwendet werden
+        Files.deleteIfExists(manifestFile.toPath());
+        if (compress) {
+            encrypt(inputFile, outputFile, keys);
+            return (inputFile.length() + DEFAULT_SEGMENT_SIZE - 1) / DEFAULT_SEGMENT_SIZE;
+        }
+        if (manifest == null) {
+            FdsHeader header = FdsHeader.create(cipherId, (byte) 0, DEFAULT_SEGMENT_SIZE, inputFile.length(), keys);
+            manifest = FdsManifest.create(header, keys);
+            encrypt(inputFile, outputFile, keys, header, manifest);
+            manifest.write(manifestFile, keys, header);
+            return header.segmentCount();
+        }
+        FdsHeader header = previous.withPlainLength(inputFile.length());
+        header = header.withKeyCheck(keys.keyCheck(header));
+        manifest.resize(header.segmentCount());
+        SegmentCipher cipher = SegmentCipher.create(header.cipherId, keys.fileKey(header));
+        startProgress(header.plainLength);
+        try (FileChannel in = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.READ,
+                     StandardOpenOption.WRITE)) {
+            runSegments(in, out, cipher, header, true, manifest);
+            out.truncate(header.encryptedLength());
+            header.write(out);
+        }
+        manifest.write(manifestFile, keys, header);
+        return manifest.rewritten();
+    }
+
+    private void encrypt(File inputFile, File outputFile, FdsKeys keys, FdsHeader header, FdsManifest manifest)
+            throws IOException, GeneralSecurityException {
+        SegmentCipher cipher = SegmentCipher.create(header.cipherId, keys.fileKey(header));
+        startProgress(header.plainLength);
+        try (FileChannel in = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+             FileChannel out = openOutput(outputFile)) {
+            if (header.isCompressed()) {
+                if (header.segmentCount() >= Integer.MAX_VALUE) {
+                    throw new IOException("File too large for compression");
+                }
+                // Die Segmente liegen in Reihenfolge hintereinander, danach folgt der Index der gespeicherten
+                // Längen; der Header wird mit der Index-Position und neuem Prüfwert erst am Ende geschrieben
+                SegmentPipeline pipeline = new SegmentPipeline(in, out, cipher, header, true, null, threads, progress);
+                pipeline.run();
+                long indexOffset = pipeline.endPosition();
+                writeIndex(out, pipeline.storedLengths(), indexOffset);
+                FdsHeader done = header.withIndexOffset(indexOffset);
+                done.withKeyCheck(keys.keyCheck(done)).write(out);
+            } else {
+                header.write(out);
+                runSegments(in, out, cipher, header, true, manifest);
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+            // Entfernt die unvollständige (oder abgebrochene) Ausgabedatei
+            outputFile.delete();
+            throw ex;
+        }
+    }
+
+    // Verschlüsselt eine Datei an Ort und Stelle und benennt sie danach in <name>.fdsecure um. Die Datei
+    // wird auf die verschlüsselte Länge erweitert und abschnittsweise vom Ende her umgeschrieben: jedes
+    // gespeicherte Segment liegt hinter seinem Klartext und überschreibt nur Abschnitte, die schon
+    // verschlüsselt sind. Der Klartext des Abschnitts steht vorher im Journal; nach einem Absturz oder
+    // Abbruch setzt ein erneuter Aufruf mit demselben Passwort dort wieder an. Zusätzlicher Platzbedarf:
+    // ein Abschnitt im Journal plus Header, Nonce und Tag je Segment. Kompression wird nicht unterstützt.
+    File encryptInPlace(File file, FdsKeys keys) throws IOException, GeneralSecurityException {
+        File target = new File(file.getPath() + ".fdsecure");
+        File journalFile = InPlaceJournal.fileFor(file);
+        if (journalFile.exists() && InPlaceJournal.isStale(journalFile, file, target)) {
+            // Absturz zwischen Umbenennen und Löschen des Journals: die Datei ist bereits verschlüsselt
+            Files.delete(journalFile.toPath());
+            if (target.isFile() && !file.exists()) {
+                return target;
+            }
+        }
+        if (target.exists()) {
+            throw new IOException("Output file already exists: " + target.getName());
+        }
+        try (InPlaceJournal journal = journalFile.exists() ? InPlaceJournal.open(journalFile)
+                : InPlaceJournal.create(journalFile,
+                        FdsHeader.create(cipherId, (byte) 0, DEFAULT_SEGMENT_SIZE, file.length(), keys),
+                        Math.max(1, IN_PLACE_CHUNK / DEFAULT_SEGMENT_SIZE));
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                     StandardOpenOption.WRITE)) {
+            FdsHeader header = journal.header();
+            keys.verify(header);
+            long size = channel.size();
+            if (size != header.plainLength && size != header.encryptedLength()) {
+                throw new IOException("Journal " + journalFile.getName() + " does not belong to " + file.getName());
+            }
+            if (size < header.encryptedLength()) {
+                writeFully(channel, ByteBuffer.allocate(1), 0, 1, header.encryptedLength() - 1);
+            }
+            SegmentCipher cipher = SegmentCipher.create(header.cipherId, keys.fileKey(header));
+            ByteBuffer stored = ByteBuffer.allocate(header.storedSegmentSize());
+            startProgress(header.plainLength);
+            long next = header.segmentCount();
+            long first = journal.recover();
+            if (first >= 0) {
+                // Wiederholt den zuletzt begonnenen Abschnitt; die Segment-Nonces sind deterministisch
+                ByteBuffer plain = journal.chunk();
+                if (progress != null) {
+                    progress.add(header.plainLength - first * header.segmentSize - plain.limit());
+                }
+                writeChunk(channel, cipher, header, first, plain, stored);
+                next = first;
+            }
+            while (next > 0) {
+                if (progress != null) {
+                    progress.checkCancelled();
+                }
+                first = Math.max(0, next - journal.chunkSegments());
+                long start = first * header.segmentSize;
+                int length = (int) (Math.min(header.plainLength, next * header.segmentSize) - start);
+                ByteBuffer plain = journal.chunk();
+                readFully(channel, plain, 0, length, start);
+                journal.commit(first, length);
+                writeChunk(channel, cipher, header, first, plain, stored);
+                next = first;
+            }
+            header.write(channel);
+            channel.force(true);
+        } catch (CancellationException ex) {
+            throw new CancellationException("Cancelled, encrypt in place again to resume");
+        }
+        Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(journalFile.toPath());
+        return target;
+    }
+
+    // Verschlüsselt die Segmente eines Abschnitts an ihre endgültige Position und schreibt sie auf den
+    // Datenträger, bevor das Journal den nächsten Abschnitt aufnimmt
+    private void writeChunk(FileChannel channel, SegmentCipher cipher, FdsHeader header, long first,
+                            ByteBuffer plain, ByteBuffer stored) throws IOException, GeneralSecurityException {
+        int length = plain.limit();
+        for (int offset = 0; offset < length; offset += header.segmentSize) {
+            long index = first + offset / header.segmentSize;
+            ByteBuffer slice = plain.duplicate();
+            slice.limit(offset + header.segmentPlainLength(index)).position(offset);
+            byte[] nonce = header.segmentNonce(index, 0);
+            stored.clear();
+            stored.put(nonce);
+            cipher.encrypt(nonce, header.segmentAad(index), slice, stored);
+            writeFully(channel, stored, 0, header.storedSegmentLength(index), header.segmentOffset(index));
+        }
+        channel.force(false);
+        if (progress != null) {
+            progress.add(length);
+        }
+    }
+
+    // Schreibt den Index der gespeicherten Segmentlängen ab der angegebenen Position
+    private static void writeIndex(FileChannel out, int[] lengths, long position) throws IOException {
+        ByteBuffer index = ByteBuffer.allocate(64 * 1024);
+        for (int i = 0; i < lengths.length; ) {
+            index.clear();
+            while (index.hasRemaining() && i < lengths.length) {
+                index.putInt(lengths[i++]);
+            }
+            writeFully(out, index, 0, index.position(), position);
+            position += index.limit();
+        }
+    }
+
+    // Meldet die Gesamtgröße an den Fortschritt, falls einer gesetzt ist
+    private void startProgress(long total) {
+        if (progress != null) {
+            progress.start(total);
+        }
+    }
+
+    // Wartet auf einen Task und gibt dessen Fehler unverpackt weiter
+    static void await(Future<?> future) throws IOException, GeneralSecurityException {
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    // Schreibt ein Modus-Byte und die Deflate-Daten nach payload; lohnt die Kompression nicht,
+    // wird das Segment unkomprimiert abgelegt. payload muss mindestens plain.remaining() + 1 Bytes fassen.
+    static void compress(ByteBuffer plain, ByteBuffer payload) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(plain.duplicate());
+        deflater.finish();
+        payload.clear();
+        payload.limit(Math.min(payload.capacity(), plain.remaining() + 1));
+        payload.put(SEGMENT_DEFLATED);
+        while (!deflater.finished() && payload.hasRemaining()) {
+            deflater.deflate(payload);
+        }
+        if (!deflater.finished()) {
+            payload.clear();
+            payload.put(SEGMENT_STORED).put(plain.duplicate());
+        }
+        payload.flip();
+    }
+
+    // Kehrt compress() um; plain muss mindestens expectedLength Bytes fassen
+    static void decompress(ByteBuffer payload, ByteBuffer plain, int expectedLength) throws IOException {
+        plain.clear();
+        byte mode = payload.get();
+        if (mode == SEGMENT_STORED && payload.remaining() == expectedLength) {
+            plain.put(payload);
+        } else if (mode == SEGMENT_DEFLATED) {
+            Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            inflater.setInput(payload);
+            plain.limit(expectedLength);
+            try {
+                while (!inflater.finished() && plain.hasRemaining()) {
+                    if (inflater.inflate(plain) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupted compressed segment", ex);
+            }
+            if (!inflater.finished() || plain.position() != expectedLength) {
+                throw new IOException("Corrupted compressed segment");
+            }
+        } else {
+            throw new IOException("Corrupted compressed segment");
+        }
+        plain.flip();
+    }
+
+    // Entschlüsselt eine Datei; das Format und der Algorithmus werden anhand des Headers erkannt.
+    // Ein falsches Passwort wird über den Prüfwert im Header erkannt, bevor die Ausgabe angelegt wird.
+    void decrypt(File inputFile, File outputFile, FdsKeys keys) throws IOException, GeneralSecurityException {
+        if (!FdsHeader.isSegmented(inputFile)) {
+            startProgress(inputFile.length());
+            transformFile(inputFile, outputFile, keys.legacyKey(), progress);
+            return;
+        }
+        try (FileChannel in = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+            FdsHeader header = FdsHeader.read(in);
+            keys.verify(header);
+            if (in.size() != header.encryptedLength()) {
+                throw new IOException("Encrypted file is truncated or corrupted");
+            }
+            if (header.isContainer()) {
+                throw new IOException("File is a container archive, use --list or --extract");
+            }
+            SegmentCipher cipher = SegmentCipher.create(header.cipherId, keys.fileKey(header));
+            startProgress(header.plainLength);
+            try (FileChannel out = openOutput(outputFile)) {
+                runSegments(in, out, cipher, header, false, null);
+            } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+                outputFile.delete();
+                throw ex;
+            }
+        }
+    }
+
+    // Entschlüsselt nur den Bereich [offset, offset + length) einer .fdsecure-Datei
+    static byte[] readRange(File inputFile, FdsKeys keys, long offset, int length)
+            throws IOException, GeneralSecurityException {
+        try (FdsSeekableChannel channel = FdsSeekableChannel.open(inputFile, keys)) {
+            if (offset < 0 || length < 0) {
+                throw new IllegalArgumentException("Negative offset or length");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - offset)));
+            channel.position(offset);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // liest, bis der Bereich vollständig ist
+            }
+            return buffer.array();
+        }
+    }
+
+    // Das Mappen zum Schreiben setzt Lesezugriff auf die Ausgabedatei voraus
+    private static FileChannel openOutput(File outputFile) throws IOException {
+        return FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Führt die Segmente im Fork-Join-Pool (MMAP) oder in der Lese-/Transformations-/Schreib-Pipeline
+    // aus; mit Manifest werden unveränderte Segmente übersprungen (nur mit Positions-I/O)
+    private void runSegments(FileChannel in, FileChannel out, SegmentCipher cipher, FdsHeader header,
+                             boolean encrypt, FdsManifest manifest) throws IOException, GeneralSecurityException {
+        if (manifest != null || !useMapping(header)) {
+            new SegmentPipeline(in, out, cipher, header, encrypt, manifest, threads, progress).run();
+            return;
+        }
+        long segmentsPerWindow = Math.max(1, MAP_WINDOW_SIZE / header.storedSegmentSize());
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new MappedWindowTask(in, out, cipher, header, encrypt, progress, 0, header.segmentCount(),
+                    segmentsPerWindow));
+        } catch (SegmentFailure failure) {
+            failure.rethrow();
+        } catch (CancellationException ex) {
+            // ForkJoinPool wirft beim Abbruch eine neue Ausnahme ohne Meldung
+            throw new CancellationException("Cancelled");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Transportiert geprüfte Fehler aus den Fork-Join-Tasks
+    static final class SegmentFailure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        SegmentFailure(Exception cause) {
+            super(cause);
+        }
+
+        void rethrow() throws IOException, GeneralSecurityException {
+            if (getCause() instanceof IOException) {
+                throw (IOException) getCause();
+            }
+            if (getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) getCause();
+            }
+            throw this;
+        }
+    }
+
+    // Pipeline mit Positions-I/O: ein Lese-Thread liest die Segmente der Reihe nach voraus, mehrere
+    // Worker komprimieren und ver- bzw. entschlüsseln sie, ein Schreib-Thread schreibt sie hinterher.
+    // Die Stufen sind über begrenzte Warteschlangen verbunden und geben wiederverwendbare Puffer weiter,
+    // so überlappen Lesen, Kryptografie und Schreiben bei konstantem Speicherbedarf.
+    private static final class SegmentPipeline {
+
+        // Markiert das Ende der Segmente in den Warteschlangen
+        private static final Job END = new Job(-1, null);
+
+        private final FileChannel in;
+        private final FileChannel out;
+        private final SegmentCipher cipher;
+        private final FdsHeader header;
+        private final boolean encrypt;
+        private final FdsManifest manifest;
+        private final int threads;
+        private final CryptoProgress progress;
+        // Komprimierte Segmente haben keine feste Position und werden in Reihenfolge angehängt
+        private final boolean append;
+
+        private final int capacity;
+        private final BlockingQueue<ByteBuffer[]> free;
+        private final BlockingQueue<Job> transformQueue;
+        private final BlockingQueue<Job> writeQueue;
+        private int allocated;
+
+        private final int[] storedLengths;
+        private long endPosition = FdsHeader.SIZE;
+
+        SegmentPipeline(FileChannel in, FileChannel out, SegmentCipher cipher, FdsHeader header, boolean encrypt,
+                        FdsManifest manifest, int threads, CryptoProgress progress) {
+            this.in = in;
+            this.out = out;
+            this.cipher = cipher;
+            this.header = header;
+            this.encrypt = encrypt;
+            this.manifest = manifest;
+            this.threads = threads;
+            this.progress = progress;
+            this.append = encrypt && header.isCompressed();
+            // Jeder Worker hat ein Segment in Arbeit, dazu kommen Vorauslesen und Hinterherschreiben
+            this.capacity = threads * 2 + 2;
+            this.free = new ArrayBlockingQueue<>(capacity);
+            this.transformQueue = new ArrayBlockingQueue<>(threads);
+            this.writeQueue = new ArrayBlockingQueue<>(capacity);
+            this.storedLengths = append ? new int[(int) header.segmentCount()] : null;
+        }
+
+        // Position hinter dem letzten angehängten Segment
+        long endPosition() {
+            return endPosition;
+        }
+
+        int[] storedLengths() {
+            return storedLengths;
+        }
+
+        void run() throws IOException, GeneralSecurityException {
+            ExecutorService executor = Executors.newFixedThreadPool(threads + 2, task -> {
+                Thread thread = new Thread(task, "fdsecure-pipeline");
+                thread.setDaemon(true);
+                return thread;
+            });
+            CompletionService<Void> stages = new ExecutorCompletionService<>(executor);
+            stages.submit(this::read);
+            for (int i = 0; i < threads; i++) {
+                stages.submit(this::transform);
+            }
+            stages.submit(this::write);
+            try {
+                for (int i = 0; i < threads + 2; i++) {
+                    await(stages.take());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted");
+            } finally {
+                // Nach einem Fehler warten die übrigen Stufen an den Warteschlangen und werden unterbrochen
+                executor.shutdownNow();
+            }
+        }
+
+        private Void read() throws IOException, InterruptedException {
+            for (long index = 0; index < header.segmentCount(); index++) {
+                if (progress != null) {
+                    progress.checkCancelled();
+                }
+                ByteBuffer[] buffers = acquire();
+                if (encrypt) {
+                    readFully(in, buffers[0], 0, header.segmentPlainLength(index), index * header.segmentSize);
+                } else {
+                    readFully(in, buffers[0], 0, header.storedSegmentLength(index), header.segmentOffset(index));
+                }
+                buffers[0].flip();
+                transformQueue.put(new Job(index, buffers));
+            }
+            for (int i = 0; i < threads; i++) {
+                transformQueue.put(END);
+            }
+            return null;
+        }
+
+        private Void transform() throws IOException, GeneralSecurityException, InterruptedException {
+            while (true) {
+                Job job = transformQueue.take();
+                if (job == END) {
+                    writeQueue.put(END);
+                    return null;
+                }
+                job.result = encrypt ? encryptSegment(job) : decryptSegment(job);
+                writeQueue.put(job);
+            }
+        }
+
+        // Liefert null für unveränderte Segmente im inkrementellen Modus
+        private ByteBuffer encryptSegment(Job job) throws GeneralSecurityException {
+            ByteBuffer source = job.buffers[0];
+            ByteBuffer target = job.buffers[1];
+            if (manifest != null && !manifest.update(job.index, source)) {
+                return null;
+            }
+            if (header.isCompressed()) {
+                compress(source, job.buffers[2]);
+                source = job.buffers[2];
+            }
+            byte[] nonce = header.segmentNonce(job.index, manifest == null ? 0 : manifest.generation(job.index));
+            target.clear();
+            target.put(nonce);
+            cipher.encrypt(nonce, header.segmentAad(job.index), source, target);
+            target.flip();
+            return target;
+        }
+
+        private ByteBuffer decryptSegment(Job job) throws IOException, GeneralSecurityException {
+            ByteBuffer source = job.buffers[0];
+            ByteBuffer target = job.buffers[1];
+            byte[] nonce = new byte[FdsHeader.SEGMENT_NONCE_LENGTH];
+            source.get(nonce);
+            header.checkSegmentNonce(job.index, nonce);
+            target.clear();
+            cipher.decrypt(nonce, header.segmentAad(job.index), source, target);
+            target.flip();
+            if (header.isCompressed()) {
+                decompress(target, job.buffers[2], header.segmentPlainLength(job.index));
+                target = job.buffers[2];
+            }
+            return target;
+        }
+
+        private Void write() throws IOException, InterruptedException {
+            Map<Long, Job> pending = new HashMap<>();
+            long next = 0;
+            int ended = 0;
+            while (ended < threads) {
+                Job job = writeQueue.take();
+                if (job == END) {
+                    ended++;
+                } else if (append) {
+                    // Die Worker werden in beliebiger Reihenfolge fertig, angehängt wird streng der Reihe nach
+                    pending.put(job.index, job);
+                    while ((job = pending.remove(next)) != null) {
+                        storedLengths[(int) next++] = job.result.limit();
+                        writeFully(out, job.result, 0, job.result.limit(), endPosition);
+                        endPosition += job.result.limit();
+                        release(job);
+                    }
+                } else {
+                    if (job.result != null) {
+                        long position = encrypt ? header.segmentOffset(job.index) : job.index * header.segmentSize;
+                        writeFully(out, job.result, 0, job.result.limit(), position);
+                    }
+                    release(job);
+                }
+            }
+            return null;
+        }
+
+        // Holt einen freien Puffersatz; neue werden nur bis zur Pipeline-Tiefe angelegt
+        private ByteBuffer[] acquire() throws InterruptedException {
+            ByteBuffer[] buffers = free.poll();
+            if (buffers == null && allocated < capacity) {
+                allocated++;
+                int size = header.storedSegmentSize();
+                return new ByteBuffer[] {ByteBuffer.allocate(size), ByteBuffer.allocate(size),
+                        ByteBuffer.allocate(size)};
+            }
+            return buffers != null ? buffers : free.take();
+        }
+
+        private void release(Job job) {
+            if (progress != null) {
+                progress.add(header.segmentPlainLength(job.index));
+            }
+            free.add(job.buffers);
+        }
+
+        // Ein Segment auf dem Weg durch die Pipeline samt seinem Puffersatz (Eingabe, Ausgabe, Zwischenpuffer)
+        private static final class Job {
+
+            final long index;
+            final ByteBuffer[] buffers;
+            ByteBuffer result;
+
+            Job(long index, ByteBuffer[] buffers) {
+                this.index = index;
+                this.buffers = buffers;
+            }
+        }
+    }
+
+    // Mappt Ein- und Ausgabe fensterweise und transformiert die Segmente direkt zwischen den
+    // gemappten Bereichen, ohne Kopien über Heap-Arrays
+    private static final class MappedWindowTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel in;
+        private final FileChannel out;
+        private final SegmentCipher cipher;
+        private final FdsHeader header;
+        private final boolean encrypt;
+        private final CryptoProgress progress;
+        private final long from;
+        private final long to;
+        private final long segmentsPerWindow;
+
+        MappedWindowTask(FileChannel in, FileChannel out, SegmentCipher cipher, FdsHeader header,
+                         boolean encrypt, CryptoProgress progress, long from, long to, long segmentsPerWindow) {
+            this.in = in;
+            this.out = out;
+            this.cipher = cipher;
+            this.header = header;
+            this.encrypt = encrypt;
+            this.progress = progress;
+            this.from = from;
+            this.to = to;
+            this.segmentsPerWindow = segmentsPerWindow;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > segmentsPerWindow) {
+                // Teilt an einer Fenstergrenze, damit jedes Fenster genau einmal gemappt wird
+                long middle = from + ((to - from) / segmentsPerWindow / 2) * segmentsPerWindow;
+                if (middle == from) {
+                    middle = from + segmentsPerWindow;
+                }
+                invokeAll(new MappedWindowTask(in, out, cipher, header, encrypt, progress, from, middle,
+                                segmentsPerWindow),
+                        new MappedWindowTask(in, out, cipher, header, encrypt, progress, middle, to,
+                                segmentsPerWindow));
+                return;
+            }
+            if (from < to) {
+                try {
+                    processWindow();
+                } catch (IOException | GeneralSecurityException ex) {
+                    throw new SegmentFailure(ex);
+                }
+            }
+        }
+
+        private void processWindow() throws IOException, GeneralSecurityException {
+            long plainStart = from * header.segmentSize;
+            long plainEnd = Math.min(header.plainLength, to * header.segmentSize);
+            long storedStart = header.segmentOffset(from);
+            long storedEnd = header.segmentOffset(to - 1) + header.storedSegmentLength(to - 1);
+            MappedByteBuffer plain = (encrypt ? in : out).map(
+                    encrypt ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                    plainStart, plainEnd - plainStart);
+            MappedByteBuffer stored = (encrypt ? out : in).map(
+                    encrypt ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    storedStart, storedEnd - storedStart);
+            byte[] nonce = new byte[FdsHeader.SEGMENT_NONCE_LENGTH];
+            for (long index = from; index < to; index++) {
+                if (progress != null) {
+                    progress.checkCancelled();
+                }
+                int plainOffset = (int) (index * header.segmentSize - plainStart);
+                int storedOffset = (int) (header.segmentOffset(index) - storedStart);
+                ByteBuffer plainSlice = plain.duplicate();
+                plainSlice.limit(plainOffset + header.segmentPlainLength(index)).position(plainOffset);
+                ByteBuffer storedSlice = stored.duplicate();
+                storedSlice.limit(storedOffset + header.storedSegmentLength(index)).position(storedOffset);
+                if (encrypt) {
+                    nonce = header.segmentNonce(index, 0);
+                    storedSlice.put(nonce);
+                    cipher.encrypt(nonce, header.segmentAad(index), plainSlice, storedSlice);
+                } else {
+                    storedSlice.get(nonce);
+                    header.checkSegmentNonce(index, nonce);
+                    cipher.decrypt(nonce, header.segmentAad(index), storedSlice, plainSlice);
+                }
+                if (progress != null) {
+                    progress.add(header.segmentPlainLength(index));
+                }
+            }
+        }
+    }
+
+    // Liest genau length Bytes ab der Dateiposition in den Puffer
+    static void readFully(FileChannel channel, ByteBuffer buffer, int offset, int length, long position)
+            throws IOException {
+        buffer.limit(offset + length).position(offset);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position() - offset);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+        }
+    }
+
+    // Schreibt genau length Bytes aus dem Puffer an die Dateiposition
+    static void writeFully(FileChannel channel, ByteBuffer buffer, int offset, int length, long position)
+            throws IOException {
+        buffer.limit(offset + length).position(offset);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position() - offset);
+        }
+    }
+
+    // Transformiert eine Datei im alten Format blockweise in die Ausgabedatei (XOR ist symmetrisch)
+    static long transformFile(File inputFile, File outputFile, byte[] key, CryptoProgress progress)
+            throws IOException {
+        try (InputStream in = new FileInputStream(inputFile);
+             OutputStream out = new FileOutputStream(outputFile)) {
+            return transform(in, out, key, progress);
+        } catch (IOException | RuntimeException ex) {
+            // Entfernt die unvollständige Ausgabedatei
+            outputFile.delete();
+            throw ex;
+        }
+    }
+
+    // Transformiert einen Datenstrom blockweise und liefert die Anzahl verarbeiteter Bytes
+    static long transform(InputStream in, OutputStream out, byte[] key, CryptoProgress progress)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = 0;
+        int read;
+        // read() darf weniger Bytes liefern als angefragt, die Position im Schlüssel wird mitgeführt
+        while ((read = in.read(buffer)) != -1) {
+            if (progress != null) {
+                progress.checkCancelled();
+            }
+            xor(buffer, 0, read, key, position);
+            out.write(buffer, 0, read);
+            position += read;
+            if (progress != null) {
+                progress.add(read);
+            }
+        }
+        return position;
+    }
+
+    // Wendet den Schlüssel ab der absoluten Dateiposition als wiederholten XOR-Schlüsselstrom an
+    static void xor(byte[] data, int offset, int length, byte[] key, long position) {
+        XorKernel.xor(data, offset, data, offset, length, key, (int) (position % key.length));
+    }
+}
+
+// Fortschritt eines laufenden Auftrags: die Worker-Threads zählen die verarbeiteten Klartext-Bytes,
+// die Oberfläche fragt Rate und Restzeit ab und kann den Auftrag abbrechen
+final class CryptoProgress {
+
+    private final LongAdder done = new LongAdder();
+    private volatile long total;
+    private volatile long startNanos = System.nanoTime();
+    private volatile boolean cancelled;
+
+    void start(long total) {
+        this.total = total;
+        done.reset();
+        startNanos = System.nanoTime();
+    }
+
+    void add(long bytes) {
+        done.add(bytes);
+    }
+
+    long done() {
+        return done.sum();
+    }
+
+    long total() {
+        return total;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Wird von den Workern zwischen den Segmenten aufgerufen; die Engine entfernt dann die Ausgabe
+    void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Cancelled");
+        }
+    }
+
+    double bytesPerSecond() {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed <= 0 ? 0 : done() * 1e9 / elapsed;
+    }
+
+    // Geschätzte Restzeit in Sekunden, -1 solange noch keine Rate bekannt ist
+    long etaSeconds() {
+        double rate = bytesPerSecond();
+        return rate <= 0 ? -1 : (long) Math.ceil(Math.max(0, total - done()) / rate);
+    }
+}
+
+// Nur lesbare Sicht auf den Klartext einer .fdsecure-Datei mit wahlfreiem Zugriff: beim Lesen werden
+// nur die Segmente entschlüsselt, die die aktuelle Position abdecken. Das zuletzt entschlüsselte
+// Segment wird zwischengespeichert, sodass sequenzielles Lesen jedes Segment nur einmal entschlüsselt.
+// Als InputStream nutzbar über Channels.newInputStream(channel).
+final class FdsSeekableChannel implements SeekableByteChannel {
+
+    private final FileChannel channel;
+    private final FdsHeader header;
+    private final SegmentCipher cipher;
+    private final byte[] legacyKey;
+    private final long size;
+    private long position;
+
+    // Zwischenspeicher für das zuletzt entschlüsselte Segment
+    private final ByteBuffer stored;
+    private final ByteBuffer payload;
+    private final ByteBuffer plain;
+    private long cachedSegment = -1;
+
+    private FdsSeekableChannel(FileChannel channel, FdsHeader header, SegmentCipher cipher, byte[] legacyKey,
+                               long size) {
+        this.channel = channel;
+        this.header = header;
+        this.cipher = cipher;
+        this.legacyKey = legacyKey;
+        this.size = size;
+        this.stored = header == null ? null : ByteBuffer.allocate(header.storedSegmentSize());
+        this.payload = header == null || !header.isCompressed() ? null
+                : ByteBuffer.allocate(header.storedSegmentSize());
+        this.plain = header == null ? null : ByteBuffer.allocate(header.segmentSize);
+    }
+
+    // Öffnet die Datei und prüft das Passwort anhand des Headers; Dateien im alten Format werden
+    // direkt an der Position mit dem XOR-Schlüsselstrom entschlüsselt
+    static FdsSeekableChannel open(File file, FdsKeys keys) throws IOException, GeneralSecurityException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (!FdsHeader.isSegmented(file)) {
+                return new FdsSeekableChannel(channel, null, null, keys.legacyKey(), channel.size());
+            }
+            FdsHeader header = FdsHeader.read(channel);
+            keys.verify(header);
+            if (channel.size() != header.encryptedLength()) {
+                throw new IOException("Encrypted file is truncated or corrupted");
+            }
+            SegmentCipher cipher = SegmentCipher.create(header.cipherId, keys.fileKey(header));
+            return new FdsSeekableChannel(channel, header, cipher, null, header.plainLength);
+        } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            int count = header == null ? readLegacy(dst) : readSegment(dst);
+            position += count;
+            total += count;
+        }
+        return total;
+    }
+
+    private int readLegacy(ByteBuffer dst) throws IOException {
+        int count = (int) Math.min(dst.remaining(), Math.min(size - position, CryptoEngine.BUFFER_SIZE));
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        CryptoEngine.readFully(channel, buffer, 0, count, position);
+        CryptoEngine.xor(buffer.array(), 0, count, legacyKey, position);
+        dst.put(buffer.array(), 0, count);
+        return count;
+    }
+
+    private int readSegment(ByteBuffer dst) throws IOException {
+        long index = position / header.segmentSize;
+        if (index != cachedSegment) {
+            decryptSegment(index);
+        }
+        int offset = (int) (position - index * header.segmentSize);
+        int count = Math.min(dst.remaining(), plain.limit() - offset);
+        dst.put(plain.array(), offset, count);
+        return count;
+    }
+
+    private void decryptSegment(long index) throws IOException {
+        cachedSegment = -1;
+        CryptoEngine.readFully(channel, stored, 0, header.storedSegmentLength(index), header.segmentOffset(index));
+        stored.flip();
+        byte[] nonce = new byte[FdsHeader.SEGMENT_NONCE_LENGTH];
+        stored.get(nonce);
+        header.checkSegmentNonce(index, nonce);
+        ByteBuffer target = payload != null ? payload : plain;
+        target.clear();
+        try {
+            cipher.decrypt(nonce, header.segmentAad(index), stored, target);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+        target.flip();
+        if (payload != null) {
+            CryptoEngine.decompress(payload, plain, header.segmentPlainLength(index));
+        }
+        cachedSegment = index;
+    }
+
+    boolean isContainer() {
+        return header != null && header.isContainer();
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+// Container-Archiv: viele Dateien in einer einzigen .fdsecure-Datei mit einer Schlüsselableitung.
+// Der Klartext besteht aus den aneinandergehängten Dateiinhalten, dem Index (Anzahl, pro Eintrag
+// Pfad, Offset und Länge) und zuletzt der Position des Index als 8-Byte-Wert. Er wird wie eine
+// normale Datei segmentweise verschlüsselt (ohne Kompression), daher entschlüsseln Auflisten und
+// Auspacken einzelner Einträge über FdsSeekableChannel nur die betroffenen Segmente.
+// Die Klartextlänge steht erst am Ende fest, deshalb wird der Header zuletzt geschrieben; bis dahin
+// beginnt die Datei mit Nullen und wird nicht als .fdsecure-Datei erkannt.
+final class FdsContainer {
+
+    static final class Entry {
+
+        final String name;
+        final long offset;
+        final long length;
+
+        Entry(String name, long offset, long length) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private FdsContainer() {
+    }
+
+    // Packt alle regulären Dateien unter den Pfaden. Einträge heißen wie ihr Pfad relativ zum
+    // übergeordneten Verzeichnis des jeweiligen Pfads, mit / als Trenner.
+    static List<Entry> pack(List<Path> paths, File archive, FdsKeys keys, byte cipherId)
+            throws IOException, GeneralSecurityException {
+        FdsHeader header = FdsHeader.create(cipherId, FdsHeader.FLAG_CONTAINER, CryptoEngine.DEFAULT_SEGMENT_SIZE,
+                0, keys);
+        SegmentCipher cipher = SegmentCipher.create(cipherId, keys.fileKey(header));
+        List<Entry> entries = new ArrayList<>();
+        try (FileChannel out = FileChannel.open(archive.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            SegmentWriter writer = new SegmentWriter(out, header, cipher);
+            Path target = archive.toPath().toAbsolutePath().normalize();
+            for (Path path : paths) {
+                Path base = path.toAbsolutePath().normalize().getParent();
+                try (Stream<Path> files = Files.walk(path)) {
+                    for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                        Path absolute = file.toAbsolutePath().normalize();
+                        // Das Archiv selbst kann in einem der Eingabeverzeichnisse liegen
+                        if (Files.isSameFile(absolute, target)) {
+                            continue;
+                        }
+                        String name = (base == null ? absolute : base.relativize(absolute)).toString()
+                                .replace(File.separatorChar, '/');
+                        long offset = writer.position();
+                        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                            writer.append(in);
+                        }
+                        entries.add(new Entry(name, offset, writer.position() - offset));
+                    }
+                } catch (UncheckedIOException ex) {
+                    // Fehler beim Verzeichnisdurchlauf
+                    throw ex.getCause();
+                }
+            }
+            long indexOffset = writer.position();
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(index);
+            data.writeInt(entries.size());
+            for (Entry entry : entries) {
+                data.writeUTF(entry.name);
+                data.writeLong(entry.offset);
+                data.writeLong(entry.length);
+            }
+            data.writeLong(indexOffset);
+            writer.append(ByteBuffer.wrap(index.toByteArray()));
+            FdsHeader done = header.withPlainLength(writer.finish());
+            done.withKeyCheck(keys.keyCheck(done)).write(out);
+        } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+            // Entfernt das unvollständige Archiv
+            archive.delete();
+            throw ex;
+        }
+        return entries;
+    }
+
+    static List<Entry> list(File archive, FdsKeys keys) throws IOException, GeneralSecurityException {
+        try (FdsSeekableChannel channel = openContainer(archive, keys)) {
+            return readIndex(channel);
+        }
+    }
+
+    // Packt den Eintrag name bzw. alle Einträge (name == null) unter dem Zielverzeichnis aus und
+    // liefert die Anzahl der ausgepackten Einträge
+    static int extract(File archive, FdsKeys keys, String name, Path target)
+            throws IOException, GeneralSecurityException {
+        Path root = target.toAbsolutePath().normalize();
+        int extracted = 0;
+        try (FdsSeekableChannel channel = openContainer(archive, keys)) {
+            ByteBuffer buffer = ByteBuffer.allocate(CryptoEngine.BUFFER_SIZE);
+            for (Entry entry : readIndex(channel)) {
+                if (name != null && !name.equals(entry.name)) {
+                    continue;
+                }
+                // Einträge dürfen nicht aus dem Zielverzeichnis herausführen
+                Path output = root.resolve(entry.name).normalize();
+                if (!output.startsWith(root) || output.equals(root)) {
+                    throw new IOException("Unsafe entry name: " + entry.name);
+                }
+                Files.createDirectories(output.getParent());
+                try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    channel.position(entry.offset);
+                    for (long remaining = entry.length; remaining > 0; ) {
+                        buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                        if (channel.read(buffer) < 0) {
+                            throw new EOFException("Unexpected end of container");
+                        }
+                        buffer.flip();
+                        remaining -= buffer.remaining();
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer);
+                        }
+                    }
+                }
+                extracted++;
+            }
+        }
+        if (name != null && extracted == 0) {
+            throw new FileNotFoundException("No such entry: " + name);
+        }
+        return extracted;
+    }
+
+    private static FdsSeekableChannel openContainer(File archive, FdsKeys keys)
+            throws IOException, GeneralSecurityException {
+        FdsSeekableChannel channel = FdsSeekableChannel.open(archive, keys);
+        if (!channel.isContainer()) {
+            channel.close();
+            throw new IOException("Not a container archive: " + archive);
+        }
+        return channel;
+    }
+
+    // Liest den Index über die am Ende gespeicherte Position; nur dessen Segmente werden entschlüsselt
+    private static List<Entry> readIndex(FdsSeekableChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer tail = ByteBuffer.allocate(Long.BYTES);
+        channel.position(Math.max(0, size - Long.BYTES));
+        if (size < Long.BYTES + Integer.BYTES || channel.read(tail) != Long.BYTES) {
+            throw new IOException("Corrupted container index");
+        }
+        long indexOffset = tail.getLong(0);
+        if (indexOffset < 0 || indexOffset > size - Long.BYTES - Integer.BYTES) {
+            throw new IOException("Corrupted container index");
+        }
+        channel.position(indexOffset);
+        // Der Stream wird nicht geschlossen, das übernimmt der Aufrufer mit dem Kanal
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel),
+                64 * 1024));
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupted container index");
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong());
+            if (entry.offset < 0 || entry.length < 0 || entry.offset + entry.length > indexOffset) {
+                throw new IOException("Corrupted container index");
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    // Sammelt den Klartext segmentweise und schreibt jedes volle Segment verschlüsselt an seine
+    // feste Position; das letzte, kürzere Segment schreibt finish()
+    private static final class SegmentWriter {
+
+        private final FileChannel out;
+        private final FdsHeader header;
+        private final SegmentCipher cipher;
+        private final ByteBuffer plain;
+        private final ByteBuffer stored;
+        private long index;
+
+        SegmentWriter(FileChannel out, FdsHeader header, SegmentCipher cipher) {
+            this.out = out;
+            this.header = header;
+            this.cipher = cipher;
+            this.plain = ByteBuffer.allocate(header.segmentSize);
+            this.stored = ByteBuffer.allocate(header.storedSegmentSize());
+        }
+
+        // Position im Klartext des Containers
+        long position() {
+            return index * header.segmentSize + plain.position();
+        }
+
+        void append(FileChannel in) throws IOException, GeneralSecurityException {
+            while (true) {
+                if (!plain.hasRemaining()) {
+                    flush();
+                }
+                if (in.read(plain) < 0) {
+                    return;
+                }
+            }
+        }
+
+        void append(ByteBuffer data) throws IOException, GeneralSecurityException {
+            while (data.hasRemaining()) {
+                if (!plain.hasRemaining()) {
+                    flush();
+                }
+                int count = Math.min(plain.remaining(), data.remaining());
+                plain.put(data.slice().limit(count));
+                data.position(data.position() + count);
+            }
+        }
+
+        // Liefert die Klartextlänge des Containers
+        long finish() throws IOException, GeneralSecurityException {
+            long length = position();
+            if (plain.position() > 0) {
+                flush();
+            }
+            return length;
+        }
+
+        private void flush() throws IOException, GeneralSecurityException {
+            plain.flip();
+            byte[] nonce = header.segmentNonce(index, 0);
+            stored.clear();
+            stored.put(nonce);
+            cipher.encrypt(nonce, header.segmentAad(index), plain, stored);
+            CryptoEngine.writeFully(out, stored, 0, stored.position(), header.segmentOffset(index));
+            plain.clear();
+            index++;
+        }
+    }
+}
+
+// Austauschbares Verschlüsselungsverfahren für einzelne Segmente.
+// Die Cipher-ID im Header legt fest, welches Verfahren eine Datei entschlüsselt.
+interface SegmentCipher {
+
+    byte XOR = 0;
+    byte AES_CTR = 1;
+    byte AES_GCM = 2;
+
+    // Verschlüsselt in.remaining() Bytes nach out; out erhält zusätzlich overhead() Bytes.
+    // aad wird von authentisierenden Verfahren mitgeprüft, aber nicht gespeichert.
+    void encrypt(byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException;
+
+    // Entschlüsselt in.remaining() Bytes nach out
+    void decrypt(byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException;
+
+    // Standardverfahren, überschreibbar mit -Dfdsecure.cipher=gcm|ctr|xor
+    static byte defaultId() {
+        String name = System.getProperty("fdsecure.cipher", "gcm");
+        switch (name.toLowerCase()) {
+            case "gcm":
+                return AES_GCM;
+            case "ctr":
+                return AES_CTR;
+            case "xor":
+                return XOR;
+            default:
+                throw new IllegalArgumentException("Unknown cipher: " + name);
+        }
+    }
+
+    // Zusätzliche Bytes pro Segment (z. B. das GCM-Authentifizierungs-Tag)
+    static int overhead(byte id) {
+        switch (id) {
+            case XOR:
+            case AES_CTR:
+                return 0;
+            case AES_GCM:
+                return AesSegmentCipher.GCM_TAG_LENGTH;
+            default:
+                throw new IllegalArgumentException("Unknown cipher id: " + id);
+        }
+    }
+
+    static SegmentCipher create(byte id, byte[] key) throws GeneralSecurityException {
+        switch (id) {
+            case XOR:
+                return new XorSegmentCipher(key);
+            case AES_CTR:
+            case AES_GCM:
+                return new AesSegmentCipher(id, key);
+            default:
+                throw new GeneralSecurityException("Unsupported cipher id: " + id);
+        }
+    }
+}
+
+// Altes Verfahren: wiederholter XOR-Schlüsselstrom, pro Segment aus Schlüssel und Nonce abgeleitet
+final class XorSegmentCipher implements SegmentCipher {
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(FdsHeader::sha256);
+
+    private final byte[] key;
+
+    XorSegmentCipher(byte[] key) {
+        this.key = key.clone();
+    }
+
+    @Override
+    public void encrypt(byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out) {
+        transform(nonce, in, out);
+    }
+
+    @Override
+    public void decrypt(byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out) {
+        transform(nonce, in, out);
+    }
+
+    private void transform(byte[] nonce, ByteBuffer in, ByteBuffer out) {
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        digest.update(key);
+        digest.update(nonce);
+        XorKernel.xor(in, out, digest.digest(), 0);
+    }
+}
+
+// XOR mit einem wiederholten Schlüssel, acht Bytes pro Schritt über long-Sichten (VarHandle)
+// auf Arrays bzw. Puffer. Der Schlüssel wird dazu auf ein Vielfaches von acht Schlüssellängen
+// ausgerollt; ab jeder Phase liefert der ausgerollte Schlüssel so an jeder Stelle die
+// Schlüsselbytes der entsprechenden Datenbytes. Das Ergebnis ist byteweise identisch zur
+// einfachen Schleife, die nur noch für kurze Längen und den Rest am Ende verwendet wird.
+final class XorKernel {
+
+    private static final VarHandle ARRAY_LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    // Mindestlänge des ausgerollten Schlüssels, damit der Umlauf selten erreicht wird
+    private static final int MIN_CYCLE = 4096;
+    // Darunter lohnt das Ausrollen nicht
+    private static final int MIN_WIDE_LENGTH = 256;
+    private static final ThreadLocal<byte[]> EXPANDED = ThreadLocal.withInitial(() -> new byte[0]);
+    private static final ThreadLocal<byte[]> CHUNKS = ThreadLocal.withInitial(() -> new byte[64 << 10]);
+
+    private XorKernel() {
+    }
+
+    // dst[dstOffset + i] = src[srcOffset + i] ^ key[(phase + i) % key.length]; src und dst dürfen gleich sein
+    static void xor(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length, byte[] key, int phase) {
+        int i = 0;
+        if (length >= MIN_WIDE_LENGTH) {
+            int cycle = cycleLength(key.length);
+            byte[] expanded = expand(key, cycle);
+            for (int k = phase, end = length - 7; i < end; i += 8) {
+                long value = (long) ARRAY_LONGS.get(src, srcOffset + i) ^ (long) ARRAY_LONGS.get(expanded, k);
+                ARRAY_LONGS.set(dst, dstOffset + i, value);
+                k += 8;
+                if (k >= cycle) {
+                    k -= cycle;
+                }
+            }
+        }
+        for (int k = (int) ((phase + (long) i) % key.length); i < length; i++) {
+            dst[dstOffset + i] = (byte) (src[srcOffset + i] ^ key[k]);
+            if (++k == key.length) {
+                k = 0;
+            }
+        }
+    }
+
+    // Verarbeitet in.remaining() Bytes von in nach out (auch direkte und gemappte Puffer)
+    // und rückt beide Positionen vor
+    static void xor(ByteBuffer in, ByteBuffer out, byte[] key, int phase) {
+        int length = in.remaining();
+        if (out.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        int inStart = in.position();
+        int outStart = out.position();
+        if (in.hasArray() && out.hasArray()) {
+            xor(in.array(), in.arrayOffset() + inStart, out.array(), out.arrayOffset() + outStart, length, key,
+                    phase);
+        } else {
+            // Direkte und gemappte Puffer werden abschnittsweise über ein Heap-Array verarbeitet;
+            // die Blockkopien sind schneller als einzelne long-Zugriffe auf den Puffer
+            byte[] chunk = CHUNKS.get();
+            for (int done = 0; done < length; done += chunk.length) {
+                int count = Math.min(chunk.length, length - done);
+                in.get(inStart + done, chunk, 0, count);
+                xor(chunk, 0, chunk, 0, count, key, (int) ((phase + (long) done) % key.length));
+                out.put(outStart + done, chunk, 0, count);
+            }
+        }
+        in.position(inStart + length);
+        out.position(outStart + length);
+    }
+
+    // Vielfaches von 8 * Schlüssellänge, mindestens MIN_CYCLE
+    private static int cycleLength(int keyLength) {
+        int unit = 8 * keyLength;
+        return (MIN_CYCLE + unit - 1) / unit * unit;
+    }
+
+    // Wiederholt den Schlüssel auf cycle + 8 Bytes, damit auch am Umlauf ein ganzes long lesbar ist
+    private static byte[] expand(byte[] key, int cycle) {
+        byte[] expanded = EXPANDED.get();
+        if (expanded.length < cycle + 8) {
+            expanded = new byte[cycle + 8];
+            EXPANDED.set(expanded);
+        }
+        System.arraycopy(key, 0, expanded, 0, key.length);
+        for (int filled = key.length; filled < cycle + 8; filled *= 2) {
+            System.arraycopy(expanded, 0, expanded, filled, Math.min(filled, cycle + 8 - filled));
+        }
+        return expanded;
+    }
+}
+
+// AES-CTR bzw. AES-GCM über javax.crypto.Cipher (nutzt AES-NI, sofern die JVM es unterstützt)
+final class AesSegmentCipher implements SegmentCipher {
+
+    static final int GCM_TAG_LENGTH = 16;
+
+    private final byte id;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Cipher> ciphers;
+
+    AesSegmentCipher(byte id, byte[] key) throws GeneralSecurityException {
+        this.id = id;
+        this.key = new SecretKeySpec(key, "AES");
+        String transformation = id == AES_GCM ? "AES/GCM/NoPadding" : "AES/CTR/NoPadding";
+        Cipher.getInstance(transformation); // prüft frühzeitig die Verfügbarkeit
+        this.ciphers = ThreadLocal.withInitial(() -> {
+            try {
+                return Cipher.getInstance(transformation);
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+    }
+
+    @Override
+    public void encrypt(byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, parameters(nonce));
+        if (id == AES_GCM) {
+            cipher.updateAAD(aad);
+        }
+        cipher.doFinal(in, out);
+    }
+
+    @Override
+    public void decrypt(byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, parameters(nonce));
+        if (id == AES_GCM) {
+            cipher.updateAAD(aad);
+        }
+        try {
+            cipher.doFinal(in, out);
+        } catch (AEADBadTagException ex) {
+            throw new AEADBadTagException("Encrypted data is corrupted (authentication failed)");
+        }
+    }
+
+    // GCM nutzt die 96-Bit-Nonce direkt, CTR ergänzt sie um einen 32-Bit-Blockzähler
+    private AlgorithmParameterSpec parameters(byte[] nonce) {
+        if (id == AES_GCM) {
+            return new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce);
+        }
+        return new IvParameterSpec(Arrays.copyOf(nonce, 16));
+    }
+}
+
+// Header des segmentierten .fdsecure-Formats:
+// Magic "FDSC" | Version | Cipher-ID | Flags | PBKDF2-Iterationen | Salt | Segmentgröße | Klartextlänge |
+// Index-Position | Datei-Nonce | Schlüssel-Prüfwert, danach die Segmente jeweils als Segment-Nonce gefolgt
+// von den verschlüsselten Daten (und ggf. dem Tag). Der Prüfwert authentisiert alle vorherigen Header-Felder.
+// Komprimierte Segmente sind unterschiedlich lang; ihre gespeicherten Längen stehen dann in einem
+// Index (ein int pro Segment) ab der Index-Position am Dateiende.
+final class FdsHeader {
+
+    static final byte[] MAGIC = {'F', 'D', 'S', 'C'};
+    static final int VERSION = 5;
+    static final byte FLAG_COMPRESSED = 1;
+    // Container-Archiv (siehe FdsContainer), nie zusammen mit FLAG_COMPRESSED
+    static final byte FLAG_CONTAINER = 2;
+    static final int FILE_NONCE_LENGTH = 16;
+    static final int SEGMENT_NONCE_LENGTH = 12;
+    static final int KEY_CHECK_LENGTH = 16;
+    static final int PREFIX_SIZE = MAGIC.length + 1 + 1 + 1 + 4 + FdsKeys.SALT_LENGTH + 4 + 8 + 8 + FILE_NONCE_LENGTH;
+    static final int SIZE = PREFIX_SIZE + KEY_CHECK_LENGTH;
+
+    final byte cipherId;
+    final byte flags;
+    final int iterations;
+    final byte[] salt;
+    final int segmentSize;
+    final long plainLength;
+    final long indexOffset;
+    final byte[] fileNonce;
+    final byte[] keyCheck;
+    // Startpositionen der komprimierten Segmente, nur nach read() gesetzt
+    private long[] offsets;
+
+    FdsHeader(byte cipherId, byte flags, int iterations, byte[] salt, int segmentSize, long plainLength,
+              long indexOffset, byte[] fileNonce, byte[] keyCheck) {
+        if (iterations <= 0 || salt.length != FdsKeys.SALT_LENGTH || segmentSize <= 0 || plainLength < 0
+                || indexOffset < 0 || (flags & ~(FLAG_COMPRESSED | FLAG_CONTAINER)) != 0
+                || flags == (FLAG_COMPRESSED | FLAG_CONTAINER)
+                || fileNonce.length != FILE_NONCE_LENGTH || keyCheck.length != KEY_CHECK_LENGTH) {
+            throw new IllegalArgumentException("Invalid header parameters");
+        }
+        SegmentCipher.overhead(cipherId);
+        this.cipherId = cipherId;
+        this.flags = flags;
+        this.iterations = iterations;
+        this.salt = salt.clone();
+        this.segmentSize = segmentSize;
+        this.plainLength = plainLength;
+        this.indexOffset = indexOffset;
+        this.fileNonce = fileNonce.clone();
+        this.keyCheck = keyCheck.clone();
+    }
+
+    // Erstellt einen Header mit zufälliger Datei-Nonce und dem Prüfwert für die Schlüssel
+    static FdsHeader create(byte cipherId, byte flags, int segmentSize, long plainLength, FdsKeys keys)
+            throws GeneralSecurityException {
+        byte[] nonce = new byte[FILE_NONCE_LENGTH];
+        new SecureRandom().nextBytes(nonce);
+        FdsHeader header = new FdsHeader(cipherId, flags, keys.iterations(), keys.salt(), segmentSize, plainLength,
+                0, nonce, new byte[KEY_CHECK_LENGTH]);
+        return header.withKeyCheck(keys.keyCheck(header));
+    }
+
+    FdsHeader withKeyCheck(byte[] check) {
+        return new FdsHeader(cipherId, flags, iterations, salt, segmentSize, plainLength, indexOffset, fileNonce,
+                check);
+    }
+
+    // Der Prüfwert muss anschließend neu berechnet werden
+    FdsHeader withPlainLength(long length) {
+        return new FdsHeader(cipherId, flags, iterations, salt, segmentSize, length, indexOffset, fileNonce,
+                keyCheck);
+    }
+
+    // Der Prüfwert muss anschließend neu berechnet werden
+    FdsHeader withIndexOffset(long offset) {
+        return new FdsHeader(cipherId, flags, iterations, salt, segmentSize, plainLength, offset, fileNonce,
+                keyCheck);
+    }
+
+    boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    boolean isContainer() {
+        return (flags & FLAG_CONTAINER) != 0;
+    }
+
+    long segmentCount() {
+        return (plainLength + segmentSize - 1) / segmentSize;
+    }
+
+    int segmentPlainLength(long index) {
+        return (int) Math.min(segmentSize, plainLength - index * segmentSize);
+    }
+
+    // Maximale gespeicherte Länge eines Segments inklusive Nonce, Modus-Byte und Tag
+    int storedSegmentSize() {
+        return SEGMENT_NONCE_LENGTH + (isCompressed() ? 1 : 0) + segmentSize + SegmentCipher.overhead(cipherId);
+    }
+
+    int storedSegmentLength(long index) {
+        if (isCompressed()) {
+            return (int) (offsets[(int) index + 1] - offsets[(int) index]);
+        }
+        return SEGMENT_NONCE_LENGTH + segmentPlainLength(index) + SegmentCipher.overhead(cipherId);
+    }
+
+    long segmentOffset(long index) {
+        if (isCompressed()) {
+            return offsets[(int) index];
+        }
+        return SIZE + index * storedSegmentSize();
+    }
+
+    long encryptedLength() {
+        if (isCompressed()) {
+            return indexOffset + segmentCount() * 4;
+        }
+        return SIZE + segmentCount() * (storedSegmentSize() - segmentSize) + plainLength;
+    }
+
+    // Deterministische Segment-Nonce aus Segmentnummer und Generation; eindeutig, da der Datenschlüssel
+    // pro Datei-Nonce abgeleitet wird. Die Generation wird bei jedem inkrementellen Neuschreiben eines
+    // Segments erhöht und steht offen in der Nonce, damit sie beim Lesen ohne Manifest prüfbar ist.
+    byte[] segmentNonce(long index, int generation) {
+        return ByteBuffer.allocate(SEGMENT_NONCE_LENGTH).putLong(index).putInt(generation).array();
+    }
+
+    // Weist gespeicherte Segmente zurück, deren Nonce nicht zu ihrer Position gehört (vertauscht oder kopiert)
+    void checkSegmentNonce(long index, byte[] nonce) throws IOException {
+        int generation = ByteBuffer.wrap(nonce).getInt(SEGMENT_NONCE_LENGTH - 4);
+        if (!Arrays.equals(nonce, segmentNonce(index, generation))) {
+            throw new IOException("Encrypted data is corrupted (segment " + index + " is out of place)");
+        }
+    }
+
+    // Zusätzliche authentisierte Daten eines Segments: Datei-Nonce und Segmentnummer binden das Segment
+    // (bei GCM) an seine Datei und Position
+    byte[] segmentAad(long index) {
+        return ByteBuffer.allocate(FILE_NONCE_LENGTH + 8).put(fileNonce).putLong(index).array();
+    }
+
+    // Header-Felder ohne Prüfwert, über die der Prüfwert berechnet wird
+    byte[] prefix() {
+        ByteBuffer buffer = ByteBuffer.allocate(PREFIX_SIZE);
+        buffer.put(MAGIC).put((byte) VERSION).put(cipherId).put(flags).putInt(iterations).put(salt)
+                .putInt(segmentSize).putLong(plainLength).putLong(indexOffset).put(fileNonce);
+        return buffer.array();
+    }
+
+    void write(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.put(prefix()).put(keyCheck);
+        CryptoEngine.writeFully(channel, buffer, 0, SIZE, 0);
+    }
+
+    static FdsHeader read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        CryptoEngine.readFully(channel, buffer, 0, SIZE, 0);
+        buffer.flip();
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a segmented .fdsecure file");
+        }
+        int version = buffer.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IOException("Unsupported .fdsecure format version: " + version);
+        }
+        byte cipherId = buffer.get();
+        byte flags = buffer.get();
+        int iterations = buffer.getInt();
+        byte[] salt = new byte[FdsKeys.SALT_LENGTH];
+        buffer.get(salt);
+        int segmentSize = buffer.getInt();
+        long plainLength = buffer.getLong();
+        long indexOffset = buffer.getLong();
+        byte[] fileNonce = new byte[FILE_NONCE_LENGTH];
+        buffer.get(fileNonce);
+        byte[] keyCheck = new byte[KEY_CHECK_LENGTH];
+        buffer.get(keyCheck);
+        FdsHeader header;
+        try {
+            header = new FdsHeader(cipherId, flags, iterations, salt, segmentSize, plainLength, indexOffset,
+                    fileNonce, keyCheck);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Corrupted .fdsecure header", ex);
+        }
+        if (header.isCompressed()) {
+            header.readIndex(channel);
+        }
+        return header;
+    }
+
+    // Liest den Segmentindex und berechnet daraus die Startpositionen der Segmente
+    private void readIndex(FileChannel channel) throws IOException {
+        long count = segmentCount();
+        if (count >= Integer.MAX_VALUE || indexOffset < SIZE || indexOffset + count * 4 > channel.size()) {
+            throw new IOException("Encrypted file is truncated or corrupted");
+        }
+        int minimum = SEGMENT_NONCE_LENGTH + 1 + SegmentCipher.overhead(cipherId);
+        offsets = new long[(int) count + 1];
+        offsets[0] = SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (int i = 0; i < count; ) {
+            int entries = (int) Math.min(buffer.capacity() / 4, count - i);
+            CryptoEngine.readFully(channel, buffer, 0, entries * 4, indexOffset + i * 4L);
+            buffer.flip();
+            for (int j = 0; j < entries; j++, i++) {
+                int length = buffer.getInt();
+                if (length < minimum || length > storedSegmentSize()) {
+                    throw new IOException("Corrupted segment index");
+                }
+                offsets[i + 1] = offsets[i] + length;
+            }
+        }
+        if (offsets[(int) count] != indexOffset) {
+            throw new IOException("Corrupted segment index");
+        }
+    }
+
+    // Prüft, ob die Datei mit dem Magic des segmentierten Formats beginnt
+    static boolean isSegmented(File file) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        try (InputStream in = new FileInputStream(file)) {
+            return in.readNBytes(magic, 0, magic.length) == magic.length && Arrays.equals(magic, MAGIC);
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+}
+
+// Manifest für die inkrementelle Verschlüsselung (<datei>.fdsecure.manifest):
+// Magic "FDSM" | Version | Datei-Nonce | Segmentgröße | Anzahl Einträge, pro Segment Generation,
+// Vorhanden-Flag und ein gekürzter HMAC des Klartexts, abschließend ein HMAC über das Manifest.
+// Einträge entfernter Segmente bleiben erhalten, damit ihre Generation nie wiederverwendet wird.
+final class FdsManifest {
+
+    static final byte[] MAGIC = {'F', 'D', 'S', 'M'};
+    static final int VERSION = 1;
+    static final int HASH_LENGTH = 16;
+    static final int MAC_LENGTH = 32;
+    private static final String SUFFIX = ".manifest";
+
+    private final byte[] fileNonce;
+    private final int segmentSize;
+    private int[] generations;
+    private boolean[] present;
+    private byte[] hashes;
+    private final byte[] hashKey;
+    private final int written;
+    private final LongAdder rewritten = new LongAdder();
+    private final ThreadLocal<Mac> macs = new ThreadLocal<>();
+
+    private FdsManifest(byte[] fileNonce, int segmentSize, int capacity, int written, byte[] hashKey) {
+        this.fileNonce = fileNonce.clone();
+        this.segmentSize = segmentSize;
+        this.written = written;
+        this.hashKey = hashKey;
+        this.generations = new int[capacity];
+        this.present = new boolean[capacity];
+        this.hashes = new byte[capacity * HASH_LENGTH];
+    }
+
+    static File fileFor(File encryptedFile) {
+        return new File(encryptedFile.getPath() + SUFFIX);
+    }
+
+    static FdsManifest create(FdsHeader header, FdsKeys keys) throws GeneralSecurityException {
+        return new FdsManifest(header.fileNonce, header.segmentSize, capacity(header.segmentCount()), 0,
+                keys.manifestKey(header));
+    }
+
+    private static int capacity(long segments) {
+        if (segments > Integer.MAX_VALUE / HASH_LENGTH) {
+            throw new IllegalArgumentException("File too large for an incremental manifest");
+        }
+        return (int) segments;
+    }
+
+    // Vergrößert das Manifest; Einträge hinter dem Dateiende gelten als nicht vorhanden
+    void resize(long segments) {
+        int count = capacity(segments);
+        if (count > generations.length) {
+            generations = Arrays.copyOf(generations, count);
+            present = Arrays.copyOf(present, count);
+            hashes = Arrays.copyOf(hashes, count * HASH_LENGTH);
+        }
+        for (int i = count; i < present.length; i++) {
+            present[i] = false;
+        }
+    }
+
+    int generation(long index) {
+        return generations[(int) index];
+    }
+
+    long rewritten() {
+        return rewritten.sum();
+    }
+
+    // Vergleicht den HMAC des Klartextsegments mit dem Manifest; liefert true, wenn das Segment neu
+    // geschrieben werden muss, und erhöht dann die Generation (jeder Index wird nur von einem Task bearbeitet)
+    boolean update(long index, ByteBuffer plain) {
+        int i = (int) index;
+        Mac mac = macs.get();
+        if (mac == null) {
+            try {
+                mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(hashKey, "HmacSHA256"));
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+            macs.set(mac);
+        }
+        mac.update(ByteBuffer.allocate(8).putLong(index).array());
+        mac.update(plain.duplicate());
+        byte[] hash = Arrays.copyOf(mac.doFinal(), HASH_LENGTH);
+        if (present[i] && Arrays.equals(hashes, i * HASH_LENGTH, (i + 1) * HASH_LENGTH, hash, 0, HASH_LENGTH)) {
+            return false;
+        }
+        // Alle Indizes unterhalb der bisherigen Kapazität wurden mit der aktuellen Generation schon geschrieben
+        if (i < written) {
+            generations[i]++;
+        }
+        present[i] = true;
+        System.arraycopy(hash, 0, hashes, i * HASH_LENGTH, HASH_LENGTH);
+        rewritten.increment();
+        return true;
+    }
+
+    // Schreibt das Manifest atomar über eine temporäre Datei
+    void write(File file, FdsKeys keys, FdsHeader header) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.write(MAGIC);
+        data.writeByte(VERSION);
+        data.write(fileNonce);
+        data.writeInt(segmentSize);
+        data.writeInt(generations.length);
+        for (int i = 0; i < generations.length; i++) {
+            data.writeInt(generations[i]);
+            data.writeBoolean(present[i]);
+            data.write(hashes, i * HASH_LENGTH, HASH_LENGTH);
+        }
+        data.flush();
+        byte[] content = bytes.toByteArray();
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            out.write(content);
+            out.write(FdsKeys.hmac(keys.manifestKey(header), "fdsecure-manifest-mac", content));
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Liest und authentisiert das Manifest; es muss zur Datei-Nonce und Segmentgröße des Headers passen
+    static FdsManifest read(File file, FdsKeys keys, FdsHeader header) throws IOException, GeneralSecurityException {
+        byte[] all = Files.readAllBytes(file.toPath());
+        if (all.length < MAC_LENGTH) {
+            throw new IOException("Manifest is truncated");
+        }
+        byte[] content = Arrays.copyOf(all, all.length - MAC_LENGTH);
+        byte[] expected = FdsKeys.hmac(keys.manifestKey(header), "fdsecure-manifest-mac", content);
+        if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(all, content.length, all.length))) {
+            throw new IOException("Manifest does not belong to " + file.getName());
+        }
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(content));
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        byte[] nonce = new byte[FdsHeader.FILE_NONCE_LENGTH];
+        if (!Arrays.equals(magic, MAGIC) || data.readUnsignedByte() != VERSION) {
+            throw new IOException("Unsupported manifest format");
+        }
+        data.readFully(nonce);
+        int segmentSize = data.readInt();
+        int count = data.readInt();
+        if (!Arrays.equals(nonce, header.fileNonce) || segmentSize != header.segmentSize
+                || count < header.segmentCount()) {
+            throw new IOException("Manifest does not match the encrypted file");
+        }
+        FdsManifest manifest = new FdsManifest(nonce, segmentSize, count, count, keys.manifestKey(header));
+        for (int i = 0; i < count; i++) {
+            manifest.generations[i] = data.readInt();
+            manifest.present[i] = data.readBoolean() && i < header.segmentCount();
+            data.readFully(manifest.hashes, i * HASH_LENGTH, HASH_LENGTH);
+        }
+        return manifest;
+    }
+}
+
+// Write-Ahead-Journal für die Verschlüsselung an Ort und Stelle (<datei>.fdsecure.journal): der Header
+// der künftigen .fdsecure-Datei, die Segmente pro Abschnitt und zwei abwechselnd beschriebene Slots mit
+// erstem Segment, Länge, Klartext und CRC32C des Abschnitts, der gerade überschrieben wird. Ist der
+// neueste Slot beim Absturz unvollständig, gilt der vorherige, dessen Abschnitt erneut geschrieben wird.
+final class InPlaceJournal implements Closeable {
+
+    private static final String SUFFIX = ".fdsecure.journal";
+    private static final int RECORD_HEADER = 12;
+    private static final int RECORD_TRAILER = 8;
+
+    private final FileChannel channel;
+    private final FdsHeader header;
+    private final int chunkSegments;
+    private final ByteBuffer record;
+    private int recovered;
+    private int nextSlot;
+
+    private InPlaceJournal(FileChannel channel, FdsHeader header, int chunkSegments) {
+        this.channel = channel;
+        this.header = header;
+        this.chunkSegments = chunkSegments;
+        this.record = ByteBuffer.allocate(RECORD_HEADER + chunkBytes() + RECORD_TRAILER);
+    }
+
+    static File fileFor(File plainFile) {
+        return new File(plainFile.getPath() + SUFFIX);
+    }
+
+    static InPlaceJournal create(File file, FdsHeader header, int chunkSegments) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            header.write(channel);
+            CryptoEngine.writeFully(channel, ByteBuffer.allocate(4).putInt(0, chunkSegments), 0, 4, FdsHeader.SIZE);
+            channel.force(true);
+            return new InPlaceJournal(channel, header, chunkSegments);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            file.delete();
+            throw ex;
+        }
+    }
+
+    static InPlaceJournal open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FdsHeader header = FdsHeader.read(channel);
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            CryptoEngine.readFully(channel, buffer, 0, 4, FdsHeader.SIZE);
+            int chunkSegments = buffer.getInt(0);
+            if (header.isCompressed() || header.isContainer() || chunkSegments <= 0
+                    || (long) chunkSegments * header.segmentSize > Integer.MAX_VALUE - 64) {
+                throw new IOException("Corrupted in-place journal");
+            }
+            return new InPlaceJournal(channel, header, chunkSegments);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    // Ein Journal ist veraltet, wenn seine Datei schon umbenannt wurde (das Ziel trägt seinen Header)
+    // oder wenn es Abschnitte enthält, die Datei aber nicht auf die verschlüsselte Länge erweitert ist
+    static boolean isStale(File journalFile, File file, File target) throws IOException {
+        try (InPlaceJournal journal = open(journalFile)) {
+            if (target.isFile() && journal.matches(target)) {
+                return true;
+            }
+            return file.isFile() && file.length() == journal.header.plainLength && journal.recover() >= 0;
+        }
+    }
+
+    // Vergleicht den Header des Journals mit dem einer fertig verschlüsselten Datei
+    private boolean matches(File encryptedFile) {
+        try (FileChannel in = FileChannel.open(encryptedFile.toPath(), StandardOpenOption.READ)) {
+            FdsHeader other = FdsHeader.read(in);
+            return Arrays.equals(other.prefix(), header.prefix()) && Arrays.equals(other.keyCheck, header.keyCheck)
+                    && in.size() == header.encryptedLength();
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    FdsHeader header() {
+        return header;
+    }
+
+    int chunkSegments() {
+        return chunkSegments;
+    }
+
+    private int chunkBytes() {
+        return chunkSegments * header.segmentSize;
+    }
+
+    // Puffer für den Klartext eines Abschnitts; nach recover() enthält er den wiederhergestellten Abschnitt
+    ByteBuffer chunk() {
+        ByteBuffer chunk = record.duplicate().limit(RECORD_HEADER + chunkBytes()).position(RECORD_HEADER).slice();
+        return chunk.limit(recovered > 0 ? recovered : chunkBytes());
+    }
+
+    // Lädt den neuesten gültigen Slot (den mit dem niedrigsten ersten Segment) und liefert dessen erstes
+    // Segment, oder -1, wenn noch kein Abschnitt vollständig im Journal steht
+    long recover() throws IOException {
+        long latest = -1;
+        for (int slot = 0; slot < 2; slot++) {
+            long first = read(slot, false);
+            if (first >= 0 && (latest < 0 || first < latest)) {
+                latest = first;
+                nextSlot = 1 - slot;
+            }
+        }
+        if (latest >= 0) {
+            read(1 - nextSlot, true);
+        }
+        return latest;
+    }
+
+    // Liest und prüft einen Slot; liefert das erste Segment oder -1, wenn der Slot leer oder beschädigt ist.
+    // Mit keep gilt der gelesene Klartext als wiederhergestellter Abschnitt für chunk().
+    private long read(int slot, boolean keep) throws IOException {
+        long position = slotOffset(slot);
+        if (channel.size() < position + RECORD_HEADER) {
+            return -1;
+        }
+        CryptoEngine.readFully(channel, record, 0, RECORD_HEADER, position);
+        long first = record.getLong(0);
+        int length = record.getInt(8);
+        if (first < 0 || first >= header.segmentCount() || length <= 0 || length > chunkBytes()
+                || first * header.segmentSize + length > header.plainLength
+                || channel.size() < position + RECORD_HEADER + length + RECORD_TRAILER) {
+            return -1;
+        }
+        CryptoEngine.readFully(channel, record, 0, RECORD_HEADER + length + RECORD_TRAILER, position);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 0, RECORD_HEADER + length);
+        if (crc.getValue() != record.getLong(RECORD_HEADER + length)) {
+            return -1;
+        }
+        if (keep) {
+            recovered = length;
+        }
+        return first;
+    }
+
+    // Schreibt den Klartext aus chunk() mit Prüfsumme in den nächsten Slot und auf den Datenträger
+    void commit(long first, int length) throws IOException {
+        recovered = 0;
+        record.clear();
+        record.putLong(0, first).putInt(8, length);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 0, RECORD_HEADER + length);
+        record.putLong(RECORD_HEADER + length, crc.getValue());
+        CryptoEngine.writeFully(channel, record, 0, RECORD_HEADER + length + RECORD_TRAILER, slotOffset(nextSlot));
+        channel.force(false);
+        nextSlot = 1 - nextSlot;
+    }
+
+    private long slotOffset(int slot) {
+        return FdsHeader.SIZE + 4 + (long) slot * (RECORD_HEADER + chunkBytes() + RECORD_TRAILER);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+// Schlüsselableitung: PBKDF2 liefert aus Passwort und Salt einen Hauptschlüssel, aus dem pro Datei
+// (über die Datei-Nonce) der Datenschlüssel und der Schlüssel für den Prüfwert abgeleitet werden.
+// Hauptschlüssel werden pro Salt zwischengespeichert; alle mit derselben Instanz verschlüsselten
+// Dateien teilen sich ein Salt, sodass PBKDF2 nur einmal pro Sitzung läuft.
+final class FdsKeys {
+
+    static final int SALT_LENGTH = 16;
+    static final int DEFAULT_ITERATIONS = 310_000;
+
+    private final char[] password;
+    private final int iterations;
+    private final byte[] salt = new byte[SALT_LENGTH];
+    private final Map<String, byte[]> masterKeys = new ConcurrentHashMap<>();
+
+    FdsKeys(char[] password) {
+        this(password, Integer.getInteger("fdsecure.kdfIterations", DEFAULT_ITERATIONS));
+    }
+
+    FdsKeys(char[] password, int iterations) {
+        this.password = password.clone();
+        this.iterations = iterations;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    int iterations() {
+        return iterations;
+    }
+
+    byte[] salt() {
+        return salt.clone();
+    }
+
+    // Schlüssel des alten Formats: SHA-256 über das Passwort
+    byte[] legacyKey() {
+        return FdsHeader.sha256().digest(new String(password).getBytes());
+    }
+
+    byte[] fileKey(FdsHeader header) throws GeneralSecurityException {
+        return hmac(masterKey(header), "fdsecure-data", header.fileNonce);
+    }
+
+    byte[] keyCheck(FdsHeader header) throws GeneralSecurityException {
+        byte[] checkKey = hmac(masterKey(header), "fdsecure-check", header.fileNonce);
+        return Arrays.copyOf(hmac(checkKey, "fdsecure-header", header.prefix()), FdsHeader.KEY_CHECK_LENGTH);
+    }
+
+    byte[] manifestKey(FdsHeader header) throws GeneralSecurityException {
+        return hmac(masterKey(header), "fdsecure-manifest", header.fileNonce);
+    }
+
+    // Vergleicht den Prüfwert im Header in konstanter Zeit
+    void verify(FdsHeader header) throws GeneralSecurityException {
+        if (!MessageDigest.isEqual(keyCheck(header), header.keyCheck)) {
+            throw new WrongPasswordException();
+        }
+    }
+
+    private byte[] masterKey(FdsHeader header) throws GeneralSecurityException {
+        String cacheKey = header.iterations + ":" + Base64.getEncoder().encodeToString(header.salt);
+        try {
+            return masterKeys.computeIfAbsent(cacheKey, k -> {
+                try {
+                    SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+                    PBEKeySpec spec = new PBEKeySpec(password, header.salt, header.iterations, 256);
+                    try {
+                        return factory.generateSecret(spec).getEncoded();
+                    } finally {
+                        spec.clearPassword();
+                    }
+                } catch (GeneralSecurityException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            });
+        } catch (IllegalStateException ex) {
+            if (ex.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    static byte[] hmac(byte[] key, String label, byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        mac.update(label.getBytes(StandardCharsets.US_ASCII));
+        return mac.doFinal(data);
+    }
+}
+
+// Wird geworfen, wenn der Prüfwert im Header nicht zum Passwort passt
+final class WrongPasswordException extends GeneralSecurityException {
+
+    private static final long serialVersionUID = 1L;
+
+    WrongPasswordException() {
+        super("Wrong password");
+    }
+}
@@ -1,39 +1,116 @@
+import com.sun.nio.file.ExtendedOpenOption;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.swing.*;
 import javax.swing.border.TitledBorder;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 public class SecureFileDeleter extends JFrame {
     private JList<File> fileList;
     private DefaultListModel<File> listModel;
     private JProgressBar progressBar;
     private JTextArea logArea;
+    private ShredLog shredLog;
     private JComboBox<DeletionMethod> methodComboBox;
-    private JButton addFileButton, addFolderButton, removeButton, clearButton, deleteButton;
+    private JButton addFileButton, addFolderButton, removeButton, clearButton, deleteButton, wipeFreeSpaceButton;
     private JCheckBox recursiveCheckBox;
+    private JSpinner workersSpinner;
+    private JSpinner reserveSpinner;
+    private JComboBox<OverwriteEngine.Verification> verifyComboBox;
+    private JSpinner sampleRateSpinner;
+    private JSpinner rateLimitSpinner;
+    private JSpinner iopsLimitSpinner;
+    private JCheckBox adaptiveCheckBox;
+    private final ShredMetrics metrics = new ShredMetrics();
+    private final IoThrottle ioThrottle = new IoThrottle();
+    private final OverwriteEngine overwriteEngine =
+            new OverwriteEngine(OverwriteEngine.DEFAULT_BUFFER_SIZE, metrics, ioThrottle);
+    private static final int PROGRESS_STEPS = 1000;
+    // Files up to this size are shredded in batches, configurable with -Dsecuredelete.smallFileSize=bytes
+    private static final long SMALL_FILE_SIZE = Long.getLong("securedelete.smallFileSize", 64 << 10);
+    // Files per batch, configurable with -Dsecuredelete.batchFiles=N
+    static final int BATCH_FILES = Integer.getInteger("securedelete.batchFiles", 256);
+    // Keeps the temporary names unique when several workers delete in the same folder
+    private static final AtomicLong deletedCounter = new AtomicLong();
     
     // Deletion methods
     enum DeletionMethod {
-        SIMPLE("Simple Delete"),
-        DOD_3_PASS("DoD 3-Pass (3x overwrite)"),
-        DOD_7_PASS("DoD 7-Pass (7x overwrite)"),
-        GUTMANN("Gutmann Method (35x overwrite)"),
-        RANDOM_3_PASS("Random 3-Pass"),
-        ZERO_FILL("Zero Fill Overwrite");
+        SIMPLE("Simple Delete", 0),
+        DOD_3_PASS("DoD 3-Pass (3x overwrite)", 3),
+        DOD_7_PASS("DoD 7-Pass (7x overwrite)", 7),
+        GUTMANN("Gutmann Method (35x overwrite)", 35),
+        RANDOM_3_PASS("Random 3-Pass", 3),
+        ZERO_FILL("Zero Fill Overwrite", 1);
         
         private final String description;
+        private final int passes;
         
-        DeletionMethod(String description) {
+        DeletionMethod(String description, int passes) {
             this.description = description;
+            this.passes = passes;
+        }
+        
+        int passes() {
+            return passes;
         }
         
         @Override
@@ -42,8 +119,29 @@ public class SecureFileDeleter extends JFrame {
         }
     }
     
+    // Live counters of the running job, published over JMX for monitoring
+    public interface ShredMetricsMBean {
+        boolean isRunning();
+        long getBytesWritten();
+        long getExpectedBytes();
+        long[] getBytesWrittenPerPass();
+        long getFilesFound();
+        long getFilesCompleted();
+        long getFilesFailed();
+        double getFilesPerSecond();
+        double getBytesPerSecond();
+        long getFsyncCount();
+        double getAverageFsyncMillis();
+        double getMaxFsyncMillis();
+        long getBytesVerified();
+        long getVerifyFailures();
+        double getProgressPercent();
+        long getEtaSeconds();
+    }
+    
     public SecureFileDeleter() {
         initializeGUI();
+        metrics.register();
     }
     
     private void initializeGUI() {
@@ -144,16 +242,73 @@ public class SecureFileDeleter extends JFrame {
         recursiveCheckBox.setSelected(true);
         panel.add(recursiveCheckBox, gbc);
         
+        // Concurrent workers per device
+        gbc.gridx = 0; gbc.gridy = 2;
+        gbc.gridwidth = 1;
+        panel.add(new JLabel("Workers per device:"), gbc);
+        
+        gbc.gridx = 1;
+        workersSpinner = new JSpinner(new SpinnerNumberModel(ShredScheduler.DEFAULT_WORKERS_PER_DEVICE, 1, 64, 1));
+        panel.add(workersSpinner, gbc);
+        
+        // Free space left untouched by a free-space wipe
+        gbc.gridx = 0; gbc.gridy = 3;
+        panel.add(new JLabel("Free-space reserve (MB):"), gbc);
+        
+        gbc.gridx = 1;
+        reserveSpinner = new JSpinner(new SpinnerNumberModel(
+                (int) (FreeSpaceWiper.DEFAULT_RESERVE >> 20), 16, Integer.MAX_VALUE, 256));
+        panel.add(reserveSpinner, gbc);
+        
+        // Read-back of the final pass
+        gbc.gridx = 0; gbc.gridy = 4;
+        panel.add(new JLabel("Verify final pass:"), gbc);
+        
+        gbc.gridx = 1;
+        verifyComboBox = new JComboBox<>(OverwriteEngine.Verification.values());
+        verifyComboBox.setSelectedItem(OverwriteEngine.DEFAULT_VERIFICATION);
+        sampleRateSpinner = new JSpinner(new SpinnerNumberModel(OverwriteEngine.DEFAULT_SAMPLE_PERCENT, 1, 100, 1));
+        verifyComboBox.addActionListener(
+                e -> sampleRateSpinner.setEnabled(verifyComboBox.getSelectedItem() == OverwriteEngine.Verification.SAMPLED));
+        sampleRateSpinner.setEnabled(verifyComboBox.getSelectedItem() == OverwriteEngine.Verification.SAMPLED);
+        JPanel verifyPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        verifyPanel.add(verifyComboBox);
+        verifyPanel.add(sampleRateSpinner);
+        verifyPanel.add(new JLabel("% of blocks"));
+        panel.add(verifyPanel, gbc);
+        
+        // Bandwidth limit shared by all workers; changes apply to the running job
+        gbc.gridx = 0; gbc.gridy = 5;
+        panel.add(new JLabel("I/O limit (0 = none):"), gbc);
+        
+        gbc.gridx = 1;
+        rateLimitSpinner = new JSpinner(new SpinnerNumberModel(
+                (int) (ioThrottle.bytesPerSecond() >> 20), 0, Integer.MAX_VALUE, 10));
+        iopsLimitSpinner = new JSpinner(new SpinnerNumberModel(
+                ioThrottle.operationsPerSecond(), 0, Integer.MAX_VALUE, 100));
+        adaptiveCheckBox = new JCheckBox("Back off when fsync latency rises", ioThrottle.isAdaptive());
+        rateLimitSpinner.addChangeListener(e -> applyIoLimits());
+        iopsLimitSpinner.addChangeListener(e -> applyIoLimits());
+        adaptiveCheckBox.addActionListener(e -> applyIoLimits());
+        JPanel limitPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        limitPanel.add(rateLimitSpinner);
+        limitPanel.add(new JLabel("MB/s"));
+        limitPanel.add(iopsLimitSpinner);
+        limitPanel.add(new JLabel("IOPS"));
+        limitPanel.add(adaptiveCheckBox);
+        panel.add(limitPanel, gbc);
+        
         // Progress bar
-        gbc.gridy = 2;
+        gbc.gridx = 0; gbc.gridy = 6;
+        gbc.gridwidth = 2;
         gbc.fill = GridBagConstraints.HORIZONTAL;
         gbc.weightx = 1.0;
-        progressBar = new JProgressBar();
+        progressBar = new JProgressBar(0, PROGRESS_STEPS);
         progressBar.setStringPainted(true);
         panel.add(progressBar, gbc);
         
-        // Delete button
-        gbc.gridy = 3;
+        // Delete buttons
+        gbc.gridy = 7;
         gbc.fill = GridBagConstraints.NONE;
         gbc.weightx = 0;
         gbc.anchor = GridBagConstraints.CENTER;
@@ -162,7 +317,17 @@ public class SecureFileDeleter extends JFrame {
         deleteButton.setForeground(Color.WHITE);
         deleteButton.setFont(deleteButton.getFont().deriveFont(Font.BOLD, 14f));
         deleteButton.addActionListener(e -> confirmAndDelete());
-        panel.add(deleteButton, gbc);
+        
+        wipeFreeSpaceButton = new JButton("WIPE FREE SPACE");
+        wipeFreeSpaceButton.setBackground(Color.RED);
+        wipeFreeSpaceButton.setForeground(Color.WHITE);
+        wipeFreeSpaceButton.setFont(wipeFreeSpaceButton.getFont().deriveFont(Font.BOLD, 14f));
+        wipeFreeSpaceButton.addActionListener(e -> confirmAndWipeFreeSpace());
+        
+        JPanel deletePanel = new JPanel(new FlowLayout());
+        deletePanel.add(deleteButton);
+        deletePanel.add(wipeFreeSpaceButton);
+        panel.add(deletePanel, gbc);
         
         return panel;
     }
@@ -174,6 +339,7 @@ public class SecureFileDeleter extends JFrame {
         logArea = new JTextArea(8, 50);
         logArea.setEditable(false);
         logArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        shredLog = new ShredLog(logArea, ShredLog.DEFAULT_MAX_LINES);
         
         JScrollPane scrollPane = new JScrollPane(logArea);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
@@ -182,13 +348,28 @@ public class SecureFileDeleter extends JFrame {
         JButton clearLogButton = new JButton("Clear Log");
         clearLogButton.addActionListener(e -> logArea.setText(""));
         
+        JButton logFileButton = new JButton("Log to File...");
+        logFileButton.addActionListener(e -> chooseLogFile());
+        
         JPanel logButtonPanel = new JPanel(new FlowLayout());
         logButtonPanel.add(clearLogButton);
+        logButtonPanel.add(logFileButton);
         panel.add(logButtonPanel, BorderLayout.SOUTH);
         
         return panel;
     }
     
+    private void chooseLogFile() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Write full log to file");
+        
+        if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            File file = chooser.getSelectedFile();
+            shredLog.setLogFile(file);
+            log("Logging to file: " + file.getAbsolutePath());
+        }
+    }
+    
     private void addFiles() {
         JFileChooser chooser = new JFileChooser();
         chooser.setMultiSelectionEnabled(true);
@@ -250,178 +431,381 @@ public class SecureFileDeleter extends JFrame {
                 "Type 'DELETE' to confirm:");
             
             if ("DELETE".equals(confirmText)) {
-                performDeletion();
+                List<Path> roots = new ArrayList<>();
+                for (int i = 0; i < listModel.getSize(); i++) {
+                    roots.add(listModel.getElementAt(i).toPath());
+                }
+                performDeletion(roots, (DeletionMethod) methodComboBox.getSelectedItem(),
+                        recursiveCheckBox.isSelected(), null);
             } else {
                 log("Deletion cancelled - incorrect confirmation");
             }
         }
     }
     
-    private void performDeletion() {
-        SwingWorker<Void, String> worker = new SwingWorker<Void, String>() {
+    // Runs a new job, or resumes an interrupted one when checkpoints from its journal are given
+    private void performDeletion(List<Path> roots, DeletionMethod method, boolean recursive,
+                                 Map<Path, long[]> checkpoints) {
+        int workers = (Integer) workersSpinner.getValue();
+        Timer progressTimer = startJob();
+        
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
             @Override
             protected Void doInBackground() throws Exception {
-                deleteButton.setEnabled(false);
-                DeletionMethod method = (DeletionMethod) methodComboBox.getSelectedItem();
-                
-                List<File> allFiles = collectAllFiles();
-                progressBar.setMaximum(allFiles.size());
-                progressBar.setValue(0);
+                log(checkpoints == null ? "=== Deletion process started ===" : "=== Deletion process resumed ===");
+                log("Method: " + method);
                 
-                publish("=== Deletion process started ===");
-                publish("Method: " + method);
-                publish("Total files: " + allFiles.size());
+                // Checkpoints of long overwrites go to the journal; without one the job still runs
+                ShredJournal journal = null;
+                try {
+                    journal = checkpoints == null
+                            ? ShredJournal.start(ShredJournal.DEFAULT_PATH, method, recursive, roots)
+                            : ShredJournal.resume(ShredJournal.DEFAULT_PATH);
+                } catch (IOException e) {
+                    log("✗ Cannot write journal " + ShredJournal.DEFAULT_PATH + ": " + e.getMessage());
+                }
+                ShredJournal jobJournal = journal;
                 
-                int deleted = 0;
-                for (int i = 0; i < allFiles.size(); i++) {
-                    File file = allFiles.get(i);
-                    try {
-                        if (secureDelete(file, method)) {
-                            deleted++;
-                            publish("✓ Deleted: " + file.getAbsolutePath());
-                        } else {
-                            publish("✗ Error deleting: " + file.getAbsolutePath());
-                        }
-                    } catch (Exception e) {
-                        publish("✗ Exception with " + file.getName() + ": " + e.getMessage());
+                // Files are shredded while the walk is still running; files on
+                // different devices are shredded concurrently
+                ShredScheduler scheduler = new ShredScheduler(workers);
+                new ShredWalker(recursive, SecureFileDeleter.this::log).walk(roots, item -> {
+                    metrics.fileFound(item.isRegularFile() ? item.size() : 0, method.passes());
+                    if (item.isRegularFile() && item.size() <= SMALL_FILE_SIZE && method != DeletionMethod.SIMPLE
+                            && resumePoint(checkpoints, item.path()) == null) {
+                        scheduler.submitBatched(item, BATCH_FILES, batch -> shredBatch(batch, method, jobJournal));
+                        return;
                     }
-                    progressBar.setValue(i + 1);
+                    scheduler.submit(item.path(), () -> {
+                        File file = item.path().toFile();
+                        boolean ok = false;
+                        metrics.fileStarted();
+                        try {
+                            // Links and special files are removed without writing through them
+                            ok = item.isRegularFile()
+                                    ? secureDelete(file, method, jobJournal, resumePoint(checkpoints, item.path()))
+                                    : Files.deleteIfExists(item.path());
+                            if (ok && jobJournal != null) {
+                                jobJournal.done(item.path());
+                            }
+                        } catch (Exception e) {
+                            log("✗ Exception with " + file.getName() + ": " + e.getMessage());
+                        } finally {
+                            long written = metrics.fileCompleted(ok);
+                            if (ok) {
+                                log("✓ Deleted: " + file.getAbsolutePath() + " (" + formatBytes(written) + " written)");
+                            } else {
+                                log("✗ Error deleting: " + file.getAbsolutePath());
+                            }
+                            item.finished(ok);
+                        }
+                    });
+                });
+                log("Total files: " + metrics.getFilesFound());
+                scheduler.awaitCompletion();
+                metrics.finish();
+                if (jobJournal != null) {
+                    jobJournal.finish();
                 }
                 
-                publish("=== Deletion process completed ===");
-                publish("Successfully deleted: " + deleted + "/" + allFiles.size());
+                log("=== Deletion process completed ===");
+                log("Devices: " + scheduler.deviceCount() + ", workers per device: " + workers);
+                log(String.format("Written: %s at %.1f MB/s, %.1f files/s, average fsync %.2f ms",
+                        formatBytes(metrics.getBytesWritten()), metrics.getBytesPerSecond() / (1024 * 1024),
+                        metrics.getFilesPerSecond(), metrics.getAverageFsyncMillis()));
+                logVerification();
+                log("Successfully deleted: " + metrics.getFilesCompleted() + "/" + metrics.getFilesFound());
                 
                 return null;
             }
             
             @Override
-            protected void process(List<String> chunks) {
-                for (String message : chunks) {
-                    log(message);
+            protected void done() {
+                finishJob(progressTimer);
+                listModel.clear();
+                try {
+                    get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    log("✗ Deletion failed: " + e.getCause().getMessage());
                 }
             }
+        };
+        
+        worker.execute();
+    }
+    
+    private void confirmAndWipeFreeSpace() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Choose a folder on the volume to wipe");
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File folder = chooser.getSelectedFile();
+        
+        String message = "The free space of the volume containing\n" + folder.getAbsolutePath() + "\n" +
+                        "will be filled and overwritten, leaving " + reserveSpinner.getValue() + " MB free.\n\n" +
+                        "Deletion method: " + methodComboBox.getSelectedItem() + "\n\n" +
+                        "Are you sure you want to continue?";
+        
+        int result = JOptionPane.showConfirmDialog(this, message, "Confirmation Required",
+                                                  JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+        if (result == JOptionPane.YES_OPTION) {
+            performFreeSpaceWipe(folder);
+        }
+    }
+    
+    private void performFreeSpaceWipe(File folder) {
+        DeletionMethod method = (DeletionMethod) methodComboBox.getSelectedItem();
+        int workers = (Integer) workersSpinner.getValue();
+        long reserve = ((Integer) reserveSpinner.getValue()).longValue() << 20;
+        Timer progressTimer = startJob();
+        
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                log("=== Free-space wipe started ===");
+                log("Folder: " + folder.getAbsolutePath());
+                log("Method: " + method);
+                
+                // Simple delete has no passes; free space is then zero-filled once
+                int passes = Math.max(1, method.passes());
+                long filled = new FreeSpaceWiper(overwriteEngine, metrics, workers, reserve,
+                        SecureFileDeleter.this::log).wipe(folder.toPath(), passes, () -> getPatterns(method));
+                metrics.finish();
+                
+                log("=== Free-space wipe completed ===");
+                log(String.format("Filled: %s, written: %s at %.1f MB/s", formatBytes(filled),
+                        formatBytes(metrics.getBytesWritten()), metrics.getBytesPerSecond() / (1024 * 1024)));
+                
+                return null;
+            }
             
             @Override
             protected void done() {
-                deleteButton.setEnabled(true);
-                progressBar.setValue(0);
-                listModel.clear();
+                finishJob(progressTimer);
+                try {
+                    get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    log("✗ Free-space wipe failed: " + e.getCause().getMessage());
+                }
             }
         };
         
         worker.execute();
     }
     
-    private List<File> collectAllFiles() {
-        List<File> allFiles = new ArrayList<>();
-        
-        for (int i = 0; i < listModel.getSize(); i++) {
-            File item = listModel.getElementAt(i);
-            if (item.isFile()) {
-                allFiles.add(item);
-            } else if (item.isDirectory() && recursiveCheckBox.isSelected()) {
-                collectFilesRecursively(item, allFiles);
-            }
+    // Disables the delete buttons and starts the byte-weighted progress display (on the EDT)
+    private Timer startJob() {
+        deleteButton.setEnabled(false);
+        wipeFreeSpaceButton.setEnabled(false);
+        overwriteEngine.setVerification((OverwriteEngine.Verification) verifyComboBox.getSelectedItem(),
+                (Integer) sampleRateSpinner.getValue() / 100.0);
+        metrics.start();
+        Timer progressTimer = new Timer(250, e -> updateProgress());
+        progressTimer.start();
+        return progressTimer;
+    }
+    
+    private void finishJob(Timer progressTimer) {
+        metrics.finish();
+        progressTimer.stop();
+        deleteButton.setEnabled(true);
+        wipeFreeSpaceButton.setEnabled(true);
+        progressBar.setValue(0);
+        progressBar.setString(null);
+    }
+    
+    private void applyIoLimits() {
+        ioThrottle.setLimits(((Integer) rateLimitSpinner.getValue()).longValue() << 20,
+                (Integer) iopsLimitSpinner.getValue());
+        ioThrottle.setAdaptive(adaptiveCheckBox.isSelected());
+    }
+    
+    private void logVerification() {
+        if (overwriteEngine.verification() != OverwriteEngine.Verification.OFF) {
+            log("Verified: " + formatBytes(metrics.getBytesVerified()) + " read back (" +
+                    overwriteEngine.verification() + "), " + metrics.getVerifyFailures() + " mismatches");
         }
-        
-        return allFiles;
     }
     
-    private void collectFilesRecursively(File dir, List<File> fileList) {
-        File[] files = dir.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    fileList.add(file);
-                } else if (file.isDirectory()) {
-                    collectFilesRecursively(file, fileList);
-                }
+    // Runs on the EDT
+    private void updateProgress() {
+        long eta = metrics.getEtaSeconds();
+        progressBar.setValue((int) (metrics.getProgressPercent() * PROGRESS_STEPS / 100));
+        double backOff = ioThrottle.backOffFactor();
+        progressBar.setString(String.format("%.1f%% - %.1f MB/s - ETA %s%s", metrics.getProgressPercent(),
+                metrics.getBytesPerSecond() / (1024 * 1024),
+                eta < 0 ? "--:--" : String.format("%d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60),
+                backOff < 1 ? String.format(" - backed off to %.0f%%", backOff * 100) : ""));
+    }
+    
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return (bytes / 1024) + " KB";
+        if (bytes < 1024 * 1024 * 1024) return (bytes / (1024 * 1024)) + " MB";
+        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+    
+    private static long[] resumePoint(Map<Path, long[]> checkpoints, Path file) {
+        return checkpoints == null ? null : checkpoints.get(file.toAbsolutePath().normalize());
+    }
+    
+    // Offers to resume a job whose journal shows it did not complete
+    private void offerResume() {
+        ShredJournal.Job job;
+        try {
+            job = ShredJournal.read(ShredJournal.DEFAULT_PATH);
+        } catch (IOException e) {
+            log("✗ Cannot read journal " + ShredJournal.DEFAULT_PATH + ": " + e.getMessage());
+            return;
+        }
+        if (job == null) {
+            return;
+        }
+        
+        String message = "An interrupted deletion job was found.\n\n" +
+                        "Deletion method: " + job.method + "\n" +
+                        "Entries: " + job.roots.size() + "\n" +
+                        "Files with checkpoints: " + job.checkpoints.size() + "\n\n" +
+                        "Resume it now?";
+        
+        int result = JOptionPane.showConfirmDialog(this, message, "Resume Deletion",
+                                                  JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+        if (result == JOptionPane.YES_OPTION) {
+            performDeletion(job.roots, job.method, job.recursive, job.checkpoints);
+        } else {
+            try {
+                Files.deleteIfExists(ShredJournal.DEFAULT_PATH);
+                log("Interrupted job discarded");
+            } catch (IOException e) {
+                log("✗ Cannot remove journal: " + e.getMessage());
             }
         }
     }
     
-    private boolean secureDelete(File file, DeletionMethod method) throws IOException {
+    // The resume point is {pass, offset} from the journal, or null to start from the beginning
+    private boolean secureDelete(File file, DeletionMethod method, ShredJournal journal, long[] resume)
+            throws IOException {
         if (!file.exists()) return false;
         
+        if (method == DeletionMethod.SIMPLE) {
+            return file.delete();
+        }
+        return overwriteAndDelete(file, method.passes(), getPatterns(method), journal, resume);
+    }
+    
+    // Random passes get fresh keys on every call
+    static OverwritePass[] getPatterns(DeletionMethod method) {
         switch (method) {
-            case SIMPLE:
-                return file.delete();
             case DOD_3_PASS:
-                return overwriteAndDelete(file, 3, getDoDPatterns());
             case DOD_7_PASS:
-                return overwriteAndDelete(file, 7, getDoDPatterns());
+                return getDoDPatterns();
             case GUTMANN:
-                return overwriteAndDelete(file, 35, getGutmannPatterns());
+                return getGutmannPatterns();
             case RANDOM_3_PASS:
-                return overwriteAndDelete(file, 3, getRandomPatterns(3));
-            case ZERO_FILL:
-                return overwriteAndDelete(file, 1, new byte[][]{{0}});
+                return getRandomPatterns(method.passes());
             default:
-                return file.delete();
+                return new OverwritePass[]{OverwritePass.pattern(0x00)};
         }
     }
     
-    private boolean overwriteAndDelete(File file, int passes, byte[][] patterns) throws IOException {
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rws")) {
-            long fileSize = raf.length();
-            
-            for (int pass = 0; pass < passes; pass++) {
-                byte[] pattern = patterns[pass % patterns.length];
-                raf.seek(0);
-                
-                long remaining = fileSize;
-                while (remaining > 0) {
-                    int writeSize = (int) Math.min(pattern.length, remaining);
-                    raf.write(pattern, 0, writeSize);
-                    remaining -= writeSize;
+    // Shreds small files as a group: all of them are overwritten pass by pass with one
+    // round of syncs per pass, then renamed, then unlinked
+    private void shredBatch(List<ShredWalker.ShredItem> batch, DeletionMethod method, ShredJournal journal) {
+        List<Path> files = new ArrayList<>(batch.size());
+        for (ShredWalker.ShredItem item : batch) {
+            files.add(item.path());
+        }
+        metrics.fileStarted();
+        boolean[] overwritten = overwriteEngine.overwriteBatch(files, method.passes(), () -> getPatterns(method));
+        
+        File[] renamed = new File[batch.size()];
+        for (int i = 0; i < renamed.length; i++) {
+            if (overwritten[i]) {
+                File file = files.get(i).toFile();
+                File tempFile = new File(file.getParent(),
+                        "deleted_" + System.currentTimeMillis() + "_" + deletedCounter.incrementAndGet());
+                renamed[i] = file.renameTo(tempFile) ? tempFile : file;
+            }
+        }
+        for (int i = 0; i < renamed.length; i++) {
+            ShredWalker.ShredItem item = batch.get(i);
+            boolean ok = renamed[i] != null && renamed[i].delete();
+            if (ok && journal != null) {
+                try {
+                    journal.done(item.path());
+                } catch (IOException e) {
+                    log("✗ Cannot write journal: " + e.getMessage());
                 }
-                raf.getFD().sync(); // Force write operation
             }
+            metrics.fileCompleted(ok);
+            if (ok) {
+                log("✓ Deleted: " + item.path() + " (" + formatBytes(item.size() * method.passes()) + " written)");
+            } else {
+                log("✗ Error deleting: " + item.path());
+            }
+            item.finished(ok);
         }
+    }
+    
+    private boolean overwriteAndDelete(File file, int passes, OverwritePass[] patterns, ShredJournal journal,
+                                       long[] resume) throws IOException {
+        Path path = file.toPath();
+        overwriteEngine.overwrite(file, resume == null ? 0 : (int) resume[0], resume == null ? 0 : resume[1],
+                passes, patterns, journal == null ? null : (pass, offset) -> journal.checkpoint(path, pass, offset));
         
         // Rename file and delete
-        File tempFile = new File(file.getParent(), "deleted_" + System.currentTimeMillis());
-        file.renameTo(tempFile);
-        return tempFile.delete();
+        File tempFile = new File(file.getParent(),
+                "deleted_" + System.currentTimeMillis() + "_" + deletedCounter.incrementAndGet());
+        return file.renameTo(tempFile) ? tempFile.delete() : file.delete();
     }
     
-    private byte[][] getDoDPatterns() {
-        return new byte[][] {
-            {(byte)0x00}, // Zeros
-            {(byte)0xFF}, // Ones
-            {(byte)0x00}  // Zeros
+    private static OverwritePass[] getDoDPatterns() {
+        return new OverwritePass[] {
+            OverwritePass.pattern(0x00), // Zeros
+            OverwritePass.pattern(0xFF), // Ones
+            OverwritePass.pattern(0x00)  // Zeros
         };
     }
     
-    private byte[][] getGutmannPatterns() {
-        // Simplified Gutmann patterns (only some of the 35 passes)
-        return new byte[][] {
-            {(byte)0x55}, {(byte)0xAA}, {(byte)0x92, (byte)0x49, (byte)0x24},
-            {(byte)0x49, (byte)0x24, (byte)0x92}, {(byte)0x24, (byte)0x92, (byte)0x49},
-            {(byte)0x00}, {(byte)0x11}, {(byte)0x22}, {(byte)0x33}, {(byte)0x44},
-            {(byte)0x55}, {(byte)0x66}, {(byte)0x77}, {(byte)0x88}, {(byte)0x99},
-            {(byte)0xAA}, {(byte)0xBB}, {(byte)0xCC}, {(byte)0xDD}, {(byte)0xEE},
-            {(byte)0xFF}
+    private static OverwritePass[] getGutmannPatterns() {
+        // 4 random passes, the 27 fixed patterns of passes 5-31, 4 random passes
+        return new OverwritePass[] {
+            OverwritePass.random(), OverwritePass.random(), OverwritePass.random(), OverwritePass.random(),
+            OverwritePass.pattern(0x55), OverwritePass.pattern(0xAA),
+            OverwritePass.pattern(0x92, 0x49, 0x24), OverwritePass.pattern(0x49, 0x24, 0x92),
+            OverwritePass.pattern(0x24, 0x92, 0x49),
+            OverwritePass.pattern(0x00), OverwritePass.pattern(0x11), OverwritePass.pattern(0x22),
+            OverwritePass.pattern(0x33), OverwritePass.pattern(0x44), OverwritePass.pattern(0x55),
+            OverwritePass.pattern(0x66), OverwritePass.pattern(0x77), OverwritePass.pattern(0x88),
+            OverwritePass.pattern(0x99), OverwritePass.pattern(0xAA), OverwritePass.pattern(0xBB),
+            OverwritePass.pattern(0xCC), OverwritePass.pattern(0xDD), OverwritePass.pattern(0xEE),
+            OverwritePass.pattern(0xFF),
+            OverwritePass.pattern(0x92, 0x49, 0x24), OverwritePass.pattern(0x49, 0x24, 0x92),
+            OverwritePass.pattern(0x24, 0x92, 0x49), OverwritePass.pattern(0x6D, 0xB6, 0xDB),
+            OverwritePass.pattern(0xB6, 0xDB, 0x6D), OverwritePass.pattern(0xDB, 0x6D, 0xB6),
+            OverwritePass.random(), OverwritePass.random(), OverwritePass.random(), OverwritePass.random()
         };
     }
     
-    private byte[][] getRandomPatterns(int count) {
-        SecureRandom random = new SecureRandom();
-        byte[][] patterns = new byte[count][];
+    private static OverwritePass[] getRandomPatterns(int count) {
+        OverwritePass[] patterns = new OverwritePass[count];
         
         for (int i = 0; i < count; i++) {
-            patterns[i] = new byte[1024]; // 1KB random data
-            random.nextBytes(patterns[i]);
+            patterns[i] = OverwritePass.random(); // Unique random data across the whole file
         }
         
         return patterns;
     }
     
+    // Safe to call from any thread; lines reach the log pane in batches
     private void log(String message) {
-        SwingUtilities.invokeLater(() -> {
-            logArea.append("[" + java.time.LocalTime.now().toString().substring(0, 8) + "] " + message + "\n");
-            logArea.setCaretPosition(logArea.getDocument().getLength());
-        });
+        shredLog.log(message);
     }
     
     // Custom Cell Renderer for the file list
@@ -438,7 +822,7 @@ public class SecureFileDeleter extends JFrame {
                     text += " [FOLDER]";
                     setIcon(UIManager.getIcon("FileView.directoryIcon"));
                 } else {
-                    text += " (" + formatFileSize(file.length()) + ")";
+                    text += " (" + formatBytes(file.length()) + ")";
                     setIcon(UIManager.getIcon("FileView.fileIcon"));
                 }
                 setText(text);
@@ -447,16 +831,13 @@ public class SecureFileDeleter extends JFrame {
             
             return this;
         }
-        
-        private String formatFileSize(long bytes) {
-            if (bytes < 1024) return bytes + " B";
-            if (bytes < 1024 * 1024) return (bytes / 1024) + " KB";
-            if (bytes < 1024 * 1024 * 1024) return (bytes / (1024 * 1024)) + " MB";
-            return (bytes / (1024 * 1024 * 1024)) + " GB";
-        }
     }
     
     public static void main(String[] args) {
+        // java secure-file-deleter.java --bench [options] measures the overwrite paths without the GUI
+        if (args.length > 0 && args[0].equals("--bench")) {
+            System.exit(ShredBenchmark.run(args));
+        }
         SwingUtilities.invokeLater(() -> {
             try {
                 // Try to set system look and feel
@@ -466,7 +847,1649 @@ public class SecureFileDeleter extends JFrame {
                 System.out.println("Could not set system look and feel, using default");
             }
             
-            new SecureFileDeleter().setVisible(true);
+            SecureFileDeleter deleter = new SecureFileDeleter();
+            deleter.setVisible(true);
+            deleter.offerResume();
+        });
+    }
+}
+
+// Overwrites file contents in large pattern-filled blocks through a FileChannel
+// and forces the data to disk once per pass instead of after every write
+class OverwriteEngine {
+    // Block size, configurable with -Dsecuredelete.bufferSize=bytes (default 4 MB)
+    static final int DEFAULT_BUFFER_SIZE = Integer.getInteger("securedelete.bufferSize", 4 << 20);
+    // Bytes between checkpoints of large files, configurable with -Dsecuredelete.checkpointInterval=bytes
+    static final long CHECKPOINT_INTERVAL = Long.getLong("securedelete.checkpointInterval", 256L << 20);
+    private static final int ALIGNMENT = 4096;
+    // Syncs of a batch are issued concurrently so the file system can commit them together,
+    // configurable with -Dsecuredelete.syncThreads=N
+    private static final ExecutorService SYNC_THREADS = Executors.newFixedThreadPool(
+            Integer.getInteger("securedelete.syncThreads", 16), job -> {
+                Thread thread = new Thread(job, "shred sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+    
+    // Read-back of the final pass, configurable with -Dsecuredelete.verify=off|sampled|full
+    // and -Dsecuredelete.samplePercent=N (share of the blocks read when sampled)
+    static final Verification DEFAULT_VERIFICATION =
+            Verification.valueOf(System.getProperty("securedelete.verify", "off").toUpperCase());
+    static final int DEFAULT_SAMPLE_PERCENT = Integer.getInteger("securedelete.samplePercent", 5);
+    // Upper bound for the blocks that are read back (and sampled)
+    private static final int VERIFY_BLOCK = 1 << 20;
+    
+    enum Verification {
+        OFF("Off"),
+        SAMPLED("Sampled"),
+        FULL("Full");
+        
+        private final String description;
+        
+        Verification(String description) {
+            this.description = description;
+        }
+        
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+    
+    private final int bufferSize;
+    private final ShredMetrics metrics;
+    private final IoThrottle throttle;
+    // One page-aligned direct buffer per worker thread
+    private final ThreadLocal<ByteBuffer> buffers;
+    // Expected data for the read-back, allocated on first use
+    private final ThreadLocal<ByteBuffer> expected;
+    private volatile Verification verification = DEFAULT_VERIFICATION;
+    private volatile double sampleRate = DEFAULT_SAMPLE_PERCENT / 100.0;
+    
+    OverwriteEngine() {
+        this(DEFAULT_BUFFER_SIZE, null, null);
+    }
+    
+    // Metrics and throttle may be null
+    OverwriteEngine(int bufferSize, ShredMetrics metrics, IoThrottle throttle) {
+        if (bufferSize < ALIGNMENT) {
+            throw new IllegalArgumentException("Buffer size must be at least " + ALIGNMENT + " bytes");
+        }
+        this.bufferSize = bufferSize;
+        this.metrics = metrics;
+        this.throttle = throttle;
+        this.buffers = ThreadLocal.withInitial(
+                () -> ByteBuffer.allocateDirect(bufferSize + ALIGNMENT).alignedSlice(ALIGNMENT));
+        this.expected = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Math.min(bufferSize, VERIFY_BLOCK)));
+    }
+    
+    int bufferSize() {
+        return bufferSize;
+    }
+    
+    // Applies to overwrites started afterwards; sampleRate is the share of blocks read when sampled
+    void setVerification(Verification verification, double sampleRate) {
+        this.verification = verification;
+        this.sampleRate = sampleRate;
+    }
+    
+    Verification verification() {
+        return verification;
+    }
+    
+    void overwrite(File file, int passes, OverwritePass[] patterns) throws IOException {
+        overwrite(file, 0, passes, patterns);
+    }
+    
+    // Reports durable progress: all passes before pass are complete and pass itself is on disk up to offset
+    interface CheckpointListener {
+        void reached(int pass, long offset) throws IOException;
+    }
+    
+    // Runs the passes from firstPass on over the whole file
+    void overwrite(File file, int firstPass, int passes, OverwritePass[] patterns) throws IOException {
+        overwrite(file, firstPass, 0, passes, patterns, null);
+    }
+    
+    // Starts at firstOffset of firstPass. Files larger than the checkpoint interval are also
+    // synced every interval, and each synced position is reported to the listener (if any).
+    void overwrite(File file, int firstPass, long firstOffset, int passes, OverwritePass[] patterns,
+                   CheckpointListener checkpoints) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            boolean track = checkpoints != null && size > CHECKPOINT_INTERVAL;
+            for (int pass = firstPass; pass < passes; pass++) {
+                OverwritePass pattern = patterns[pass % patterns.length];
+                // Restarts at a period boundary so that the pattern continues seamlessly
+                long start = pass == firstPass ? firstOffset - firstOffset % pattern.period() : 0;
+                if (track) {
+                    long step = Math.max(1, CHECKPOINT_INTERVAL / blockLength(pattern)) * blockLength(pattern);
+                    for (long from = start; from < size; from += step) {
+                        long to = Math.min(size, from + step);
+                        writePass(channel, from, to, pass, pattern, null);
+                        if (to < size) {
+                            sync(channel);
+                            checkpoints.reached(pass, to);
+                        }
+                    }
+                } else {
+                    writePass(channel, start, size, pass, pattern, null);
+                }
+                sync(channel); // One sync per pass
+                if (track) {
+                    checkpoints.reached(pass + 1, 0);
+                }
+            }
+            if (firstPass < passes) {
+                // A resumed final pass only matches the regenerated data from where it resumed;
+                // a random pass used a different key before that point
+                OverwritePass last = patterns[(passes - 1) % patterns.length];
+                long from = firstPass == passes - 1 ? firstOffset - firstOffset % last.period() : 0;
+                verify(file.toPath(), from, size, last);
+            }
+        }
+    }
+    
+    // Overwrites small files together: each pass is written to all of them before they
+    // are synced as a group, so the writes reach the device in one burst and the
+    // concurrent data-only syncs (the size does not change) share journal commits and
+    // device flushes instead of paying a write-sync round trip per file. Every file gets
+    // its own patterns. Returns for each file whether all passes were written and synced.
+    boolean[] overwriteBatch(List<Path> files, int passes, Supplier<OverwritePass[]> patterns) {
+        boolean[] ok = new boolean[files.size()];
+        FileChannel[] channels = new FileChannel[files.size()];
+        OverwritePass[][] filePatterns = new OverwritePass[files.size()][];
+        long[] sizes = new long[files.size()];
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                try {
+                    channels[i] = FileChannel.open(files.get(i), StandardOpenOption.WRITE);
+                    sizes[i] = channels[i].size();
+                    filePatterns[i] = patterns.get();
+                    ok[i] = true;
+                } catch (IOException e) {
+                    closeQuietly(channels[i]);
+                }
+            }
+            for (int pass = 0; pass < passes; pass++) {
+                for (int i = 0; i < channels.length; i++) {
+                    if (ok[i]) {
+                        try {
+                            writePass(channels[i], 0, sizes[i], pass,
+                                    filePatterns[i][pass % filePatterns[i].length], null);
+                        } catch (IOException e) {
+                            ok[i] = false;
+                        }
+                    }
+                }
+                List<Future<?>> syncs = new ArrayList<>();
+                for (int i = 0; i < channels.length; i++) {
+                    FileChannel channel = channels[i];
+                    syncs.add(ok[i] ? SYNC_THREADS.submit(() -> {
+                        sync(channel, false);
+                        return null;
+                    }) : null);
+                }
+                for (int i = 0; i < channels.length; i++) {
+                    try {
+                        if (syncs.get(i) != null) {
+                            syncs.get(i).get();
+                        }
+                    } catch (ExecutionException e) {
+                        ok[i] = false;
+                    }
+                }
+            }
+            for (int i = 0; i < channels.length; i++) {
+                if (ok[i] && passes > 0) {
+                    try {
+                        verify(files.get(i), 0, sizes[i], filePatterns[i][(passes - 1) % filePatterns[i].length]);
+                    } catch (IOException e) {
+                        ok[i] = false;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Arrays.fill(ok, false);
+        } finally {
+            for (FileChannel channel : channels) {
+                closeQuietly(channel);
+            }
+        }
+        return ok;
+    }
+    
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+    
+    // Reads the final pass back and compares it with the regenerated pass data. Where the
+    // file system supports it the reads bypass the page cache (O_DIRECT), so they come
+    // from the device rather than from the pages just written. Sampled verification reads
+    // the first block and a random share of the others. Only [from, size) is checked,
+    // starting at the first block boundary. Throws if the data differs.
+    private void verify(Path file, long from, long size, OverwritePass pass) throws IOException {
+        Verification mode = verification;
+        if (mode == Verification.OFF || size == 0) {
+            return;
+        }
+        // Blocks start at multiples of both the direct I/O alignment and the pass period
+        int unit = ALIGNMENT / gcd(ALIGNMENT, pass.period()) * pass.period();
+        long first = (from + unit - 1) / unit * unit;
+        int length = Math.max(1, Math.min(bufferSize, VERIFY_BLOCK) / unit) * unit;
+        ByteBuffer read = buffers.get().duplicate();
+        ByteBuffer want = expected.get();
+        if (want.capacity() < length) {
+            want = ByteBuffer.allocateDirect(length);
+            expected.set(want);
+        }
+        want = want.duplicate();
+        want.clear().limit(length);
+        want = want.slice();
+        if (pass.isRepeating()) {
+            pass.fill(want, 0);
+        }
+        
+        try (FileChannel channel = openForVerify(file)) {
+            for (long position = first; position < size; position += length) {
+                if (mode == Verification.SAMPLED && position > first
+                        && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+                    continue;
+                }
+                int count = (int) Math.min(length, size - position);
+                if (throttle != null) {
+                    throttle.acquire(count);
+                }
+                // Direct reads need aligned lengths; a short read at the end is expected
+                read.clear().limit(length);
+                while (read.position() < count) {
+                    if (channel.read(read, position + read.position()) < 0) {
+                        break;
+                    }
+                }
+                if (!pass.isRepeating()) {
+                    want.clear().limit(count);
+                    pass.fill(want, position);
+                }
+                int mismatch = read.flip().limit(Math.min(read.limit(), count)).mismatch(want.clear().limit(count));
+                if (mismatch >= 0 || read.limit() < count) {
+                    if (metrics != null) {
+                        metrics.verifyFailed();
+                    }
+                    throw new IOException("Verification failed at offset " + (position + Math.max(mismatch, 0)));
+                }
+                if (metrics != null) {
+                    metrics.verified(count);
+                }
+            }
+        }
+    }
+    
+    private static FileChannel openForVerify(Path file) throws IOException {
+        try {
+            return FileChannel.open(file, StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g. tmpfs: the read then comes from the page cache
+            return FileChannel.open(file, StandardOpenOption.READ);
+        }
+    }
+    
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+    
+    // The block length is a multiple of the pass period, so consecutive
+    // blocks continue the pattern without a seam
+    private int blockLength(OverwritePass pass) {
+        return bufferSize - bufferSize % pass.period();
+    }
+    
+    void sync(FileChannel channel) throws IOException {
+        sync(channel, true);
+    }
+    
+    // Without metadata only the file data is flushed (fdatasync)
+    void sync(FileChannel channel, boolean metadata) throws IOException {
+        long start = System.nanoTime();
+        channel.force(metadata);
+        long nanos = System.nanoTime() - start;
+        if (metrics != null) {
+            metrics.fsync(nanos);
+        }
+        if (throttle != null) {
+            throttle.fsyncCompleted(nanos);
+        }
+    }
+    
+    // Writes the pass data from start (a multiple of the pass period) to end. If hasRoom
+    // is given it is checked before every block, and the position reached is returned
+    // as soon as it reports false.
+    long writePass(FileChannel channel, long start, long end, int passIndex, OverwritePass pass,
+                   BooleanSupplier hasRoom) throws IOException {
+        // Small ranges only use (and fill) as much of the buffer as they need
+        long needed = Math.max(0, end - start) + pass.period() - 1;
+        ByteBuffer block = buffers.get().duplicate();
+        block.clear().limit((int) Math.min(blockLength(pass), needed - needed % pass.period()));
+        block = block.slice();
+        if (pass.isRepeating()) {
+            pass.fill(block, 0);
+        }
+        long position = start;
+        while (position < end) {
+            if (hasRoom != null && !hasRoom.getAsBoolean()) {
+                break;
+            }
+            block.limit((int) Math.min(block.capacity(), end - position)).position(0);
+            if (!pass.isRepeating()) {
+                pass.fill(block, position);
+            }
+            if (throttle != null) {
+                throttle.acquire(block.remaining());
+            }
+            while (block.hasRemaining()) {
+                int written = channel.write(block, position);
+                position += written;
+                if (metrics != null) {
+                    metrics.written(passIndex, written);
+                }
+            }
+        }
+        return position;
+    }
+}
+
+// The data written by one overwrite pass: either a fixed pattern repeated across the
+// file or a random stream that can be regenerated for any file position
+abstract class OverwritePass {
+    private static final SecureRandom SEED = new SecureRandom();
+    
+    static OverwritePass pattern(int... bytes) {
+        byte[] pattern = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            pattern[i] = (byte) bytes[i];
+        }
+        return new Pattern(pattern);
+    }
+    
+    // Every call draws a fresh key, so each pass of each file gets its own stream
+    static OverwritePass random() {
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[8];
+        SEED.nextBytes(key);
+        SEED.nextBytes(nonce);
+        return new RandomStream(key, nonce);
+    }
+    
+    // Block lengths are multiples of the period
+    abstract int period();
+    
+    // True if the data does not depend on the position, so one block can be written repeatedly
+    abstract boolean isRepeating();
+    
+    // Fills the block from position 0 to its limit with the data for the given file
+    // position, which is a multiple of period()
+    abstract void fill(ByteBuffer block, long position);
+    
+    private static final class Pattern extends OverwritePass {
+        private final byte[] pattern;
+        
+        Pattern(byte[] pattern) {
+            this.pattern = pattern;
+        }
+        
+        @Override
+        int period() {
+            return pattern.length;
+        }
+        
+        @Override
+        boolean isRepeating() {
+            return true;
+        }
+        
+        @Override
+        void fill(ByteBuffer block, long position) {
+            ByteBuffer target = block.duplicate();
+            target.position(0);
+            for (int i = 0; target.hasRemaining() && i < pattern.length; i++) {
+                target.put(pattern[i]);
+            }
+            while (target.hasRemaining()) {
+                // Doubles the filled prefix with each copy
+                ByteBuffer filled = target.duplicate().flip();
+                filled.limit(Math.min(filled.limit(), target.remaining()));
+                target.put(filled);
+            }
+        }
+    }
+    
+    // AES-256-CTR keystream seeded from SecureRandom: the counter is derived from the
+    // file position, so any block can be produced (and later regenerated) independently.
+    // Each thread keeps its own cipher instance and a zero buffer to encrypt.
+    private static final class RandomStream extends OverwritePass {
+        private static final int BLOCK = 16;
+        private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+            try {
+                return Cipher.getInstance("AES/CTR/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES/CTR is not available", e);
+            }
         });
+        private static final ThreadLocal<ByteBuffer> ZEROS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(0));
+        
+        private final SecretKeySpec key;
+        private final byte[] nonce;
+        
+        RandomStream(byte[] key, byte[] nonce) {
+            this.key = new SecretKeySpec(key, "AES");
+            this.nonce = nonce;
+        }
+        
+        @Override
+        int period() {
+            return BLOCK;
+        }
+        
+        @Override
+        boolean isRepeating() {
+            return false;
+        }
+        
+        @Override
+        void fill(ByteBuffer block, long position) {
+            ByteBuffer zeros = ZEROS.get();
+            if (zeros.capacity() < block.limit()) {
+                zeros = ByteBuffer.allocateDirect(block.limit());
+                ZEROS.set(zeros);
+            }
+            byte[] iv = ByteBuffer.allocate(BLOCK).put(nonce).putLong(position / BLOCK).array();
+            try {
+                Cipher cipher = CIPHERS.get();
+                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+                ByteBuffer source = zeros.duplicate();
+                source.clear().limit(block.limit());
+                ByteBuffer target = block.duplicate();
+                target.position(0);
+                cipher.update(source, target);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Random stream failed", e);
+            }
+        }
+    }
+}
+
+// Groups shred jobs by the FileStore (device) of each file and runs a fixed number of
+// workers per device, so several disks are busy at once while each disk sees a
+// bounded number of writers (sequential for spinning disks, parallel for NVMe)
+class ShredScheduler {
+    // Default workers per device, configurable with -Dsecuredelete.workersPerDevice=N
+    static final int DEFAULT_WORKERS_PER_DEVICE = Integer.getInteger("securedelete.workersPerDevice", 2);
+    private static final int QUEUED_JOBS_PER_WORKER = 64;
+    
+    private final int workersPerDevice;
+    private final Map<Object, ExecutorService> devices = new LinkedHashMap<>();
+    // Looking up the FileStore reads the mount table, so it is cached per folder
+    private final Map<Path, Object> storeByFolder = new HashMap<>();
+    private final Map<Object, PendingBatch> batches = new HashMap<>();
+    
+    ShredScheduler(int workersPerDevice) {
+        if (workersPerDevice < 1) {
+            throw new IllegalArgumentException("workersPerDevice must be >= 1");
+        }
+        this.workersPerDevice = workersPerDevice;
+    }
+    
+    // Called from a single dispatching thread; blocks while the device's queue is full,
+    // so a fast walker cannot queue up millions of pending jobs
+    void submit(Path path, Runnable job) {
+        submitTo(deviceOf(path), job);
+    }
+    
+    // Collects items per device and hands them to a worker as one job of batchSize
+    // items; incomplete batches are submitted by awaitCompletion
+    void submitBatched(ShredWalker.ShredItem item, int batchSize, Consumer<List<ShredWalker.ShredItem>> job) {
+        Object device = deviceOf(item.path());
+        PendingBatch batch = batches.computeIfAbsent(device, key -> new PendingBatch(job));
+        batch.items.add(item);
+        if (batch.items.size() >= batchSize) {
+            batches.remove(device);
+            submitTo(device, batch);
+        }
+    }
+    
+    int deviceCount() {
+        return devices.size();
+    }
+    
+    // Waits until every submitted job has finished
+    void awaitCompletion() throws InterruptedException {
+        for (Map.Entry<Object, PendingBatch> batch : batches.entrySet()) {
+            submitTo(batch.getKey(), batch.getValue());
+        }
+        batches.clear();
+        for (ExecutorService workers : devices.values()) {
+            workers.shutdown();
+        }
+        for (ExecutorService workers : devices.values()) {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    private void submitTo(Object device, Runnable job) {
+        devices.computeIfAbsent(device, key -> newWorkers(key.toString())).execute(job);
+    }
+    
+    // Files whose store cannot be determined share one group
+    private Object deviceOf(Path path) {
+        Path folder = path.toAbsolutePath().getParent();
+        return storeByFolder.computeIfAbsent(folder == null ? path : folder, key -> {
+            try {
+                return Files.getFileStore(key);
+            } catch (IOException e) {
+                return "unknown device";
+            }
+        });
+    }
+    
+    private ExecutorService newWorkers(String device) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(workersPerDevice, workersPerDevice, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workersPerDevice * QUEUED_JOBS_PER_WORKER), job -> {
+                    Thread thread = new Thread(job, "shred " + device + " #" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, (job, executor) -> {
+                    // All workers are running, so waiting for a free queue slot is safe
+                    try {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("Scheduler is shut down");
+                        }
+                        executor.getQueue().put(job);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted", e);
+                    }
+                });
+    }
+    
+    private static final class PendingBatch implements Runnable {
+        final List<ShredWalker.ShredItem> items = new ArrayList<>();
+        private final Consumer<List<ShredWalker.ShredItem>> job;
+        
+        PendingBatch(Consumer<List<ShredWalker.ShredItem>> job) {
+            this.job = job;
+        }
+        
+        @Override
+        public void run() {
+            job.accept(items);
+        }
+    }
+}
+
+// Streams the files below the selected entries to the shred workers while the tree is
+// still being walked, so deletion starts at once and memory stays flat on huge trees.
+// Every folder counts its outstanding entries and is removed as soon as the walk has
+// left it and all of them are gone.
+class ShredWalker {
+    private final boolean recursive;
+    private final Consumer<String> messages;
+    
+    ShredWalker(boolean recursive, Consumer<String> messages) {
+        this.recursive = recursive;
+        this.messages = messages;
+    }
+    
+    // Selected folders are skipped unless the walk is recursive
+    void walk(List<Path> roots, Consumer<ShredItem> sink) throws IOException {
+        for (Path root : roots) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                messages.accept("✗ Cannot read " + root + ": " + e.getMessage());
+                continue;
+            }
+            if (!attrs.isDirectory()) {
+                sink.accept(new ShredItem(root, attrs, null));
+            } else if (recursive) {
+                Files.walkFileTree(root, new Visitor(sink));
+            }
+        }
+    }
+    
+    // A file handed to the workers; finished() must be called once it has been handled
+    static final class ShredItem {
+        private final Path path;
+        private final boolean regularFile;
+        private final long size;
+        private final Folder folder;
+        
+        private ShredItem(Path path, BasicFileAttributes attrs, Folder folder) {
+            this.path = path;
+            this.regularFile = attrs.isRegularFile();
+            this.size = attrs.size();
+            this.folder = folder;
+        }
+        
+        Path path() {
+            return path;
+        }
+        
+        long size() {
+            return size;
+        }
+        
+        boolean isRegularFile() {
+            return regularFile;
+        }
+        
+        void finished(boolean deleted) {
+            if (folder != null) {
+                folder.done(deleted);
+            }
+        }
+    }
+    
+    private final class Folder {
+        private final Path path;
+        private final Folder parent;
+        // One extra count is held by the walk until it leaves the folder
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private volatile boolean keep;
+        
+        Folder(Path path, Folder parent) {
+            this.path = path;
+            this.parent = parent;
+        }
+        
+        void add() {
+            pending.incrementAndGet();
+        }
+        
+        // Called once per entry when it is gone (or could not be deleted)
+        void done(boolean removed) {
+            if (!removed) {
+                keep = true;
+            }
+            if (pending.decrementAndGet() == 0) {
+                boolean gone = !keep && remove();
+                if (parent != null) {
+                    parent.done(gone);
+                }
+            }
+        }
+        
+        private boolean remove() {
+            try {
+                Files.delete(path);
+                messages.accept("✓ Removed folder: " + path);
+                return true;
+            } catch (IOException e) {
+                messages.accept("✗ Could not remove folder " + path + ": " + e.getMessage());
+                return false;
+            }
+        }
+    }
+    
+    // Files.walkFileTree visits depth-first on the calling thread, so a stack tracks the current folder
+    private final class Visitor extends SimpleFileVisitor<Path> {
+        private final Consumer<ShredItem> sink;
+        private final Deque<Folder> folders = new ArrayDeque<>();
+        
+        Visitor(Consumer<ShredItem> sink) {
+            this.sink = sink;
+        }
+        
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            Folder parent = folders.peek();
+            if (parent != null) {
+                parent.add();
+            }
+            folders.push(new Folder(dir, parent));
+            return FileVisitResult.CONTINUE;
+        }
+        
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            Folder folder = folders.peek();
+            folder.add();
+            sink.accept(new ShredItem(file, attrs, folder));
+            return FileVisitResult.CONTINUE;
+        }
+        
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+            messages.accept("✗ Cannot read " + file + ": " + e.getMessage());
+            Folder folder = folders.peek();
+            if (folder != null) {
+                folder.keep = true;
+            }
+            return FileVisitResult.CONTINUE;
+        }
+        
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+            if (e != null) {
+                messages.accept("✗ Cannot read " + dir + ": " + e.getMessage());
+            }
+            folders.pop().done(e == null);
+            return FileVisitResult.CONTINUE;
+        }
+    }
+}
+
+// Log model for the log pane: workers add lines to a lock-free queue, and a background
+// flusher moves them to the text area in one EDT update per interval. The pane keeps
+// only the newest lines; the full log can be streamed to a file as well.
+class ShredLog {
+    // Lines kept on screen, configurable with -Dsecuredelete.logLines=N
+    static final int DEFAULT_MAX_LINES = Integer.getInteger("securedelete.logLines", 5000);
+    private static final long FLUSH_INTERVAL_MS = 200;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+    
+    private final JTextArea area;
+    private final int maxLines;
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService flusher;
+    // Only used by the flusher thread (and the shutdown hook)
+    private Writer logFile;
+    
+    ShredLog(JTextArea area, int maxLines) {
+        this.area = area;
+        this.maxLines = maxLines;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "log flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        String path = System.getProperty("securedelete.logFile");
+        if (path != null) {
+            setLogFile(new File(path));
+        }
+        // Writes the lines still queued when the application exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "log flusher shutdown"));
+    }
+    
+    void log(String message) {
+        pending.add("[" + LocalTime.now().format(TIME) + "] " + message);
+    }
+    
+    // Appends the full log to the file from now on
+    void setLogFile(File file) {
+        flusher.execute(() -> openLogFile(file));
+    }
+    
+    private synchronized void openLogFile(File file) {
+        closeLogFile();
+        try {
+            logFile = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            pending.add("✗ Cannot open log file " + file + ": " + e.getMessage());
+        }
+    }
+    
+    private synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        // Only the newest lines of a large batch can stay on screen anyway
+        ArrayDeque<String> tail = new ArrayDeque<>();
+        String line;
+        while ((line = pending.poll()) != null) {
+            writeToFile(line);
+            if (tail.size() == maxLines) {
+                tail.removeFirst();
+            }
+            tail.addLast(line);
+        }
+        if (logFile != null) {
+            try {
+                logFile.flush();
+            } catch (IOException e) {
+                closeLogFile();
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        for (String entry : tail) {
+            text.append(entry).append('\n');
+        }
+        SwingUtilities.invokeLater(() -> append(text.toString()));
+    }
+    
+    private void writeToFile(String line) {
+        if (logFile != null) {
+            try {
+                logFile.write(line);
+                logFile.write(System.lineSeparator());
+            } catch (IOException e) {
+                closeLogFile();
+            }
+        }
+    }
+    
+    private void closeLogFile() {
+        if (logFile != null) {
+            try {
+                logFile.close();
+            } catch (IOException e) {
+                // Nothing left to report to
+            }
+            logFile = null;
+        }
+    }
+    
+    // Runs on the EDT: appends the batch and drops the oldest lines beyond the limit
+    private void append(String text) {
+        area.append(text);
+        Document document = area.getDocument();
+        Element root = document.getDefaultRootElement();
+        // The last element is the empty line after the final newline
+        int excess = root.getElementCount() - 1 - maxLines;
+        if (excess > 0) {
+            try {
+                document.remove(0, root.getElement(excess - 1).getEndOffset());
+            } catch (BadLocationException e) {
+                area.setText("");
+            }
+        }
+        area.setCaretPosition(document.getLength());
+    }
+}
+
+// Counters of a running wipe job: the workers update them lock-free, the progress bar
+// polls them on the EDT and monitoring reads the same values over JMX
+class ShredMetrics implements SecureFileDeleter.ShredMetricsMBean {
+    private static final int MAX_PASSES = 64;
+    
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder expectedBytes = new LongAdder();
+    private final LongAdder[] passBytes = new LongAdder[MAX_PASSES];
+    private final LongAdder filesFound = new LongAdder();
+    private final LongAdder filesCompleted = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder fsyncCount = new LongAdder();
+    private final LongAdder fsyncNanos = new LongAdder();
+    private final LongAccumulator maxFsyncNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder bytesVerified = new LongAdder();
+    private final LongAdder verifyFailures = new LongAdder();
+    // Bytes written for the file the current worker thread is shredding
+    private final ThreadLocal<long[]> fileBytes = ThreadLocal.withInitial(() -> new long[1]);
+    private volatile long startNanos = System.nanoTime();
+    private volatile long endNanos;
+    private volatile boolean running;
+    
+    ShredMetrics() {
+        for (int i = 0; i < MAX_PASSES; i++) {
+            passBytes[i] = new LongAdder();
+        }
+    }
+    
+    // Registers the metrics with the platform MBean server
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, SecureFileDeleter.ShredMetricsMBean.class),
+                    new ObjectName("SecureFileDeleter:type=ShredMetrics"));
+        } catch (JMException e) {
+            System.out.println("Could not register JMX metrics: " + e.getMessage());
+        }
+    }
+    
+    void start() {
+        for (LongAdder adder : new LongAdder[] {bytesWritten, expectedBytes, filesFound, filesCompleted,
+                filesFailed, fsyncCount, fsyncNanos, bytesVerified, verifyFailures}) {
+            adder.reset();
+        }
+        for (LongAdder adder : passBytes) {
+            adder.reset();
+        }
+        maxFsyncNanos.reset();
+        startNanos = System.nanoTime();
+        running = true;
+    }
+    
+    void finish() {
+        if (running) {
+            endNanos = System.nanoTime();
+            running = false;
+        }
+    }
+    
+    void fileFound(long size, int passes) {
+        filesFound.increment();
+        expectedBytes.add(size * passes);
+    }
+    
+    void fileStarted() {
+        fileBytes.get()[0] = 0;
+    }
+    
+    // Returns the bytes written for the file
+    long fileCompleted(boolean deleted) {
+        (deleted ? filesCompleted : filesFailed).increment();
+        return fileBytes.get()[0];
+    }
+    
+    void written(int pass, long bytes) {
+        bytesWritten.add(bytes);
+        passBytes[Math.min(pass, MAX_PASSES - 1)].add(bytes);
+        fileBytes.get()[0] += bytes;
+    }
+    
+    void fsync(long nanos) {
+        fsyncCount.increment();
+        fsyncNanos.add(nanos);
+        maxFsyncNanos.accumulate(nanos);
+    }
+    
+    void verified(long bytes) {
+        bytesVerified.add(bytes);
+    }
+    
+    void verifyFailed() {
+        verifyFailures.increment();
+    }
+    
+    private double elapsedSeconds() {
+        long end = running ? System.nanoTime() : endNanos;
+        return Math.max(1, end - startNanos) / 1e9;
+    }
+    
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+    
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+    
+    @Override
+    public long getExpectedBytes() {
+        return expectedBytes.sum();
+    }
+    
+    @Override
+    public long[] getBytesWrittenPerPass() {
+        int used = MAX_PASSES;
+        while (used > 0 && passBytes[used - 1].sum() == 0) {
+            used--;
+        }
+        long[] bytes = new long[used];
+        for (int i = 0; i < used; i++) {
+            bytes[i] = passBytes[i].sum();
+        }
+        return bytes;
+    }
+    
+    @Override
+    public long getFilesFound() {
+        return filesFound.sum();
+    }
+    
+    @Override
+    public long getFilesCompleted() {
+        return filesCompleted.sum();
+    }
+    
+    @Override
+    public long getFilesFailed() {
+        return filesFailed.sum();
+    }
+    
+    @Override
+    public double getFilesPerSecond() {
+        return (getFilesCompleted() + getFilesFailed()) / elapsedSeconds();
+    }
+    
+    @Override
+    public double getBytesPerSecond() {
+        return getBytesWritten() / elapsedSeconds();
+    }
+    
+    @Override
+    public long getFsyncCount() {
+        return fsyncCount.sum();
+    }
+    
+    @Override
+    public double getAverageFsyncMillis() {
+        long count = getFsyncCount();
+        return count == 0 ? 0 : fsyncNanos.sum() / 1e6 / count;
+    }
+    
+    @Override
+    public double getMaxFsyncMillis() {
+        return maxFsyncNanos.get() / 1e6;
+    }
+    
+    @Override
+    public long getBytesVerified() {
+        return bytesVerified.sum();
+    }
+    
+    @Override
+    public long getVerifyFailures() {
+        return verifyFailures.sum();
+    }
+    
+    // Weighted by bytes; jobs without overwrite passes fall back to the file count
+    @Override
+    public double getProgressPercent() {
+        long expected = getExpectedBytes();
+        if (expected > 0) {
+            return Math.min(100, 100.0 * getBytesWritten() / expected);
+        }
+        long found = getFilesFound();
+        return found == 0 ? 0 : 100.0 * (getFilesCompleted() + getFilesFailed()) / found;
+    }
+    
+    // -1 while the rate is still unknown
+    @Override
+    public long getEtaSeconds() {
+        double rate = getBytesPerSecond();
+        if (!running || rate <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, getExpectedBytes() - getBytesWritten()) / rate);
+    }
+}
+
+// Token bucket shared by all shred workers. Every block written or read takes its bytes
+// and one operation; when the bucket runs dry the caller sleeps until its share has been
+// refilled, so the combined rate of all workers stays at the limits. The bucket holds at
+// most one second of tokens, so an idle period allows only a short burst.
+// In adaptive mode the limits are scaled down while the fsync latency rises above its
+// usual level and recover slowly once it drops again. Without a MB/s limit the observed
+// rate at the first back-off serves as the starting point.
+class IoThrottle {
+    // Limits, configurable with -Dsecuredelete.maxMBps=N, -Dsecuredelete.maxIops=N (0 = unlimited)
+    // and -Dsecuredelete.adaptive=true
+    static final long DEFAULT_BYTES_PER_SECOND = Long.getLong("securedelete.maxMBps", 0) << 20;
+    static final int DEFAULT_OPERATIONS_PER_SECOND = Integer.getInteger("securedelete.maxIops", 0);
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    // Back-off steps are taken at most this often
+    private static final long ADJUST_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final double MIN_FACTOR = 0.05;
+    
+    private long bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+    private int operationsPerSecond = DEFAULT_OPERATIONS_PER_SECOND;
+    private volatile boolean adaptive = Boolean.getBoolean("securedelete.adaptive");
+    // Tokens may go negative: the deficit is the time reserved by callers already waiting
+    private double byteTokens;
+    private double operationTokens;
+    private long lastRefill = System.nanoTime();
+    
+    // Adaptive state
+    private volatile double factor = 1;
+    private double latency;
+    private double usualLatency;
+    private long lastAdjust;
+    private long observedRate;
+    private long windowStart = System.nanoTime();
+    private long windowBytes;
+    
+    synchronized void setLimits(long bytesPerSecond, int operationsPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.operationsPerSecond = operationsPerSecond;
+        byteTokens = Math.min(byteTokens, bytesPerSecond);
+        operationTokens = Math.min(operationTokens, operationsPerSecond);
+    }
+    
+    synchronized long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+    
+    synchronized int operationsPerSecond() {
+        return operationsPerSecond;
+    }
+    
+    void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        if (!adaptive) {
+            factor = 1;
+        }
+    }
+    
+    boolean isAdaptive() {
+        return adaptive;
+    }
+    
+    // 1 unless the adaptive mode has scaled the limits down
+    double backOffFactor() {
+        return factor;
+    }
+    
+    // Blocks until the bytes and one operation may be issued
+    void acquire(long bytes) throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            countRate(now, bytes);
+            double byteRate = bytesPerSecond > 0 ? bytesPerSecond * factor
+                    : factor < 1 ? observedRate * factor : 0;
+            double operationRate = operationsPerSecond * factor;
+            double elapsed = (double) (now - lastRefill) / SECOND;
+            lastRefill = now;
+            wait = 0;
+            if (byteRate > 0) {
+                byteTokens = Math.min(byteRate, byteTokens + elapsed * byteRate) - bytes;
+                wait = Math.max(wait, (long) (-byteTokens / byteRate * SECOND));
+            }
+            if (operationRate > 0) {
+                operationTokens = Math.min(operationRate, operationTokens + elapsed * operationRate) - 1;
+                wait = Math.max(wait, (long) (-operationTokens / operationRate * SECOND));
+            }
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+    
+    // Reports the duration of a completed fsync to the adaptive mode
+    synchronized void fsyncCompleted(long nanos) {
+        if (!adaptive) {
+            return;
+        }
+        latency = latency == 0 ? nanos : latency * 0.8 + nanos * 0.2;
+        // The usual latency follows drops at once and rises only slowly, so a lasting
+        // change eventually becomes the new normal
+        usualLatency = usualLatency == 0 ? latency : Math.min(latency, usualLatency * 1.001);
+        long now = System.nanoTime();
+        if (now - lastAdjust < ADJUST_INTERVAL) {
+            return;
+        }
+        lastAdjust = now;
+        if (latency > 2 * usualLatency) {
+            if (bytesPerSecond == 0 && operationsPerSecond == 0 && observedRate == 0) {
+                return; // No rate to scale down yet
+            }
+            factor = Math.max(MIN_FACTOR, factor * 0.8);
+        } else if (latency < 1.5 * usualLatency && factor < 1) {
+            factor = Math.min(1, factor * 1.05);
+        }
+    }
+    
+    // Measures the unthrottled rate over windows of at least one second
+    private void countRate(long now, long bytes) {
+        windowBytes += bytes;
+        if (now - windowStart >= SECOND) {
+            if (factor == 1) {
+                observedRate = windowBytes * SECOND / (now - windowStart);
+            }
+            windowStart = now;
+            windowBytes = 0;
+        }
+    }
+}
+
+// Overwrites the free space of a volume. Several workers grow fill files in a temporary
+// folder on the volume with large sequential writes until only the reserve is left; the
+// remaining passes then rewrite the fill files in place before they are deleted.
+class FreeSpaceWiper {
+    // Space left free, configurable with -Dsecuredelete.freeSpaceReserve=bytes (default 1 GB)
+    static final long DEFAULT_RESERVE = Long.getLong("securedelete.freeSpaceReserve", 1L << 30);
+    // Size of a single fill file, configurable with -Dsecuredelete.fillFileSize=bytes (default 1 GB)
+    private static final long FILL_FILE_SIZE = Long.getLong("securedelete.fillFileSize", 1L << 30);
+    
+    private final OverwriteEngine engine;
+    private final ShredMetrics metrics;
+    private final int workers;
+    private final long reserve;
+    private final Consumer<String> messages;
+    
+    FreeSpaceWiper(OverwriteEngine engine, ShredMetrics metrics, int workers, long reserve,
+                   Consumer<String> messages) {
+        this.engine = engine;
+        this.metrics = metrics;
+        this.workers = workers;
+        this.reserve = reserve;
+        this.messages = messages;
+    }
+    
+    // Every fill file gets its own patterns, so random passes never repeat across files.
+    // Returns the number of bytes filled.
+    long wipe(Path folder, int passes, Supplier<OverwritePass[]> patterns) throws IOException, InterruptedException {
+        FileStore store = Files.getFileStore(folder);
+        // Every worker may write one more block after the last check
+        long limit = reserve + (long) workers * engine.bufferSize();
+        metrics.fileFound(Math.max(0, store.getUsableSpace() - limit), passes);
+        messages.accept("Volume: " + store + ", free: " + SecureFileDeleter.formatBytes(store.getUsableSpace()));
+        
+        Path fillFolder = Files.createTempDirectory(folder, "wipe-");
+        List<FillFile> fillFiles = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> jobs = new ArrayList<>();
+            for (int worker = 0; worker < workers; worker++) {
+                int id = worker;
+                jobs.add(pool.submit(() -> fill(fillFolder, id, store, limit, patterns, fillFiles)));
+            }
+            await(jobs);
+            messages.accept("Free space filled with " + fillFiles.size() + " file(s), pass 1 done");
+            
+            jobs.clear();
+            for (FillFile fillFile : fillFiles) {
+                jobs.add(pool.submit(() -> {
+                    engine.overwrite(fillFile.path.toFile(), 1, passes, fillFile.patterns);
+                    return null;
+                }));
+            }
+            await(jobs);
+            
+            long filled = 0;
+            for (FillFile fillFile : fillFiles) {
+                filled += Files.size(fillFile.path);
+            }
+            return filled;
+        } finally {
+            pool.shutdownNow();
+            for (FillFile fillFile : fillFiles) {
+                Files.deleteIfExists(fillFile.path);
+            }
+            Files.deleteIfExists(fillFolder);
+        }
+    }
+    
+    private Void fill(Path fillFolder, int worker, FileStore store, long limit, Supplier<OverwritePass[]> patterns,
+                      List<FillFile> fillFiles) throws IOException {
+        BooleanSupplier hasRoom = () -> {
+            try {
+                return store.getUsableSpace() > limit;
+            } catch (IOException e) {
+                return false;
+            }
+        };
+        for (int count = 0; hasRoom.getAsBoolean(); count++) {
+            FillFile fillFile = new FillFile(fillFolder.resolve("fill-" + worker + "-" + count), patterns.get());
+            try (FileChannel channel = FileChannel.open(fillFile.path,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                // Only files that were actually created are overwritten again and removed
+                fillFiles.add(fillFile);
+                long reached = engine.writePass(channel, 0, FILL_FILE_SIZE, 0, fillFile.patterns[0], hasRoom);
+                engine.sync(channel);
+                if (reached < FILL_FILE_SIZE) {
+                    return null;
+                }
+            } catch (IOException e) {
+                // Another process may have used up the space; the files written so far still count
+                messages.accept("✗ Stopped filling " + fillFile.path.getFileName() + ": " + e.getMessage());
+                return null;
+            }
+        }
+        return null;
+    }
+    
+    private static void await(List<Future<?>> jobs) throws IOException, InterruptedException {
+        for (Future<?> job : jobs) {
+            try {
+                job.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+    
+    private static final class FillFile {
+        final Path path;
+        final OverwritePass[] patterns;
+        
+        FillFile(Path path, OverwritePass[] patterns) {
+            this.path = path;
+            this.patterns = patterns;
+        }
+    }
+}
+
+// Append-only journal of the running deletion job, so that a multi-pass run interrupted by
+// a crash can continue where it stopped. Lines (paths URL-encoded):
+//   JOB <method> <recursive> <root>...
+//   CHECKPOINT <pass> <offset> <file>   passes before <pass> done, <pass> on disk up to <offset>
+//   DONE <file>
+//   END
+// Checkpoints are written only after the data has been forced to disk, and the journal
+// itself is synced with each checkpoint. It is removed once the job has completed.
+class ShredJournal {
+    static final Path DEFAULT_PATH = Paths.get(System.getProperty("securedelete.journal",
+            System.getProperty("user.home") + File.separator + ".secure-file-deleter.journal"));
+    
+    private final Path path;
+    private final FileOutputStream out;
+    private final Writer writer;
+    
+    private ShredJournal(Path path, boolean append) throws IOException {
+        this.path = path;
+        this.out = new FileOutputStream(path.toFile(), append);
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+    
+    // Starts a new journal, replacing any previous one
+    static ShredJournal start(Path path, SecureFileDeleter.DeletionMethod method, boolean recursive,
+                              List<Path> roots) throws IOException {
+        ShredJournal journal = new ShredJournal(path, false);
+        StringBuilder line = new StringBuilder("JOB ").append(method.name()).append(' ').append(recursive);
+        for (Path root : roots) {
+            line.append(' ').append(encode(root));
+        }
+        journal.append(line.toString(), true);
+        return journal;
+    }
+    
+    // Continues the journal of an interrupted job
+    static ShredJournal resume(Path path) throws IOException {
+        return new ShredJournal(path, true);
+    }
+    
+    synchronized void checkpoint(Path file, int pass, long offset) throws IOException {
+        append("CHECKPOINT " + pass + " " + offset + " " + encode(file), true);
+    }
+    
+    // Not synced: a lost DONE line only means the (already deleted) file is looked for again
+    synchronized void done(Path file) throws IOException {
+        append("DONE " + encode(file), false);
+    }
+    
+    synchronized void finish() throws IOException {
+        append("END", true);
+        writer.close();
+        Files.deleteIfExists(path);
+    }
+    
+    private void append(String line, boolean sync) throws IOException {
+        writer.write(line);
+        writer.write('\n');
+        writer.flush();
+        if (sync) {
+            out.getFD().sync();
+        }
+    }
+    
+    private static String encode(Path file) {
+        return URLEncoder.encode(file.toAbsolutePath().normalize().toString(), StandardCharsets.UTF_8);
+    }
+    
+    private static Path decode(String file) {
+        return Paths.get(URLDecoder.decode(file, StandardCharsets.UTF_8));
+    }
+    
+    // An interrupted job as recorded in the journal
+    static final class Job {
+        final SecureFileDeleter.DeletionMethod method;
+        final boolean recursive;
+        final List<Path> roots;
+        // {pass, offset} of the latest checkpoint of every file that is not done
+        final Map<Path, long[]> checkpoints = new HashMap<>();
+        
+        Job(SecureFileDeleter.DeletionMethod method, boolean recursive, List<Path> roots) {
+            this.method = method;
+            this.recursive = recursive;
+            this.roots = roots;
+        }
+    }
+    
+    // Returns null if there is no journal or its job has completed
+    static Job read(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        // A line torn by a crash has no line break yet and is ignored
+        content = content.substring(0, content.lastIndexOf('\n') + 1);
+        Job job = null;
+        for (String line : content.split("\n")) {
+            String[] fields = line.split(" ");
+            try {
+                switch (fields[0]) {
+                    case "JOB":
+                        List<Path> roots = new ArrayList<>();
+                        for (int i = 3; i < fields.length; i++) {
+                            roots.add(decode(fields[i]));
+                        }
+                        job = new Job(SecureFileDeleter.DeletionMethod.valueOf(fields[1]),
+                                Boolean.parseBoolean(fields[2]), roots);
+                        break;
+                    case "CHECKPOINT":
+                        job.checkpoints.put(decode(fields[3]),
+                                new long[] {Integer.parseInt(fields[1]), Long.parseLong(fields[2])});
+                        break;
+                    case "DONE":
+                        job.checkpoints.remove(decode(fields[1]));
+                        break;
+                    case "END":
+                        return null;
+                    default:
+                        break;
+                }
+            } catch (RuntimeException e) {
+                // Unreadable line (or no JOB line yet): skipped
+            }
+        }
+        return job;
+    }
+}
+
+// Measures every deletion method on one large file and on a batch of small files, in
+// each given folder (e.g. one on tmpfs and one on a real disk):
+//   java secure-file-deleter.java --bench [--dir DIR]... [--size MB] [--files N] [--rounds N]
+// Reports the best of the rounds as MB/s and files/s, plus the bytes allocated per run.
+class ShredBenchmark {
+    private static final int SMALL_FILE_SIZE = 4096;
+    
+    private final List<Path> dirs = new ArrayList<>();
+    private long size = 64L << 20;
+    private int files = 2000;
+    private int rounds = 3;
+    private final OverwriteEngine engine = new OverwriteEngine();
+    
+    static int run(String[] args) {
+        ShredBenchmark benchmark = new ShredBenchmark();
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--dir":
+                        benchmark.dirs.add(Paths.get(args[++i]));
+                        break;
+                    case "--size":
+                        benchmark.size = Long.parseLong(args[++i]) << 20;
+                        break;
+                    case "--files":
+                        benchmark.files = Integer.parseInt(args[++i]);
+                        break;
+                    case "--rounds":
+                        benchmark.rounds = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println("Usage: --bench [--dir DIR]... [--size MB] [--files N] [--rounds N]");
+            return 2;
+        }
+        if (benchmark.dirs.isEmpty()) {
+            benchmark.dirs.add(Paths.get(System.getProperty("java.io.tmpdir")));
+            if (Files.isDirectory(Paths.get("/dev/shm"))) {
+                benchmark.dirs.add(Paths.get("/dev/shm"));
+            }
+        }
+        try {
+            for (Path dir : benchmark.dirs) {
+                benchmark.runIn(dir);
+            }
+            return 0;
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        }
+    }
+    
+    private void runIn(Path dir) throws IOException {
+        Path work = Files.createTempDirectory(dir, "shred-bench");
+        try {
+            System.out.println("== " + dir + " (" + describeStore(work) + ")");
+            for (SecureFileDeleter.DeletionMethod method : SecureFileDeleter.DeletionMethod.values()) {
+                Path file = work.resolve("large");
+                long[] large = measure(() -> createFile(file, size),
+                        () -> shred(Collections.singletonList(file), method));
+                
+                List<Path> small = new ArrayList<>(files);
+                for (int i = 0; i < files; i++) {
+                    small.add(work.resolve("small" + i));
+                }
+                long[] batches = measure(() -> {
+                    for (Path path : small) {
+                        createFile(path, SMALL_FILE_SIZE);
+                    }
+                }, () -> {
+                    for (int i = 0; i < small.size(); i += SecureFileDeleter.BATCH_FILES) {
+                        shred(small.subList(i, Math.min(small.size(), i + SecureFileDeleter.BATCH_FILES)), method);
+                    }
+                });
+                
+                // SIMPLE writes nothing, so it has no write rate
+                String rate = method.passes() == 0 ? "n/a"
+                        : String.format("%.1f", (double) size * method.passes() / (1 << 20) / (large[0] / 1e9));
+                System.out.printf("%-32s %9s MB/s %9.1f MB alloc | %4d x 4 KB: %9.0f files/s %9.1f MB alloc%n",
+                        method, rate, large[1] / (double) (1 << 20),
+                        files, files / (batches[0] / 1e9), batches[1] / (double) (1 << 20));
+            }
+        } finally {
+            try (Stream<Path> left = Files.list(work)) {
+                for (Path file : (Iterable<Path>) left::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(work);
+        }
+    }
+    
+    private interface Step {
+        void run() throws IOException;
+    }
+    
+    // Runs setup untimed before every round and returns {best time in ns, bytes allocated in
+    // that round}. Round 0 warms up the JIT and does not count.
+    private long[] measure(Step setup, Step run) throws IOException {
+        long[] best = {Long.MAX_VALUE, 0};
+        for (int round = 0; round <= rounds; round++) {
+            setup.run();
+            AllocationMeter meter = new AllocationMeter();
+            long start = System.nanoTime();
+            run.run();
+            long nanos = System.nanoTime() - start;
+            long allocated = meter.stop();
+            if (round > 0 && nanos < best[0]) {
+                best[0] = nanos;
+                best[1] = allocated;
+            }
+        }
+        return best;
+    }
+    
+    // The same paths the GUI uses: one file alone, several as a batch
+    private void shred(List<Path> batch, SecureFileDeleter.DeletionMethod method) throws IOException {
+        if (method.passes() > 0) {
+            if (batch.size() == 1) {
+                engine.overwrite(batch.get(0).toFile(), method.passes(), SecureFileDeleter.getPatterns(method));
+            } else {
+                engine.overwriteBatch(batch, method.passes(), () -> SecureFileDeleter.getPatterns(method));
+            }
+        }
+        for (Path file : batch) {
+            Files.delete(file);
+        }
+    }
+    
+    private static void createFile(Path file, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ByteBuffer block = ByteBuffer.allocateDirect((int) Math.min(length, 1 << 20));
+            for (long position = 0; position < length; position += block.capacity()) {
+                block.clear().limit((int) Math.min(block.capacity(), length - position));
+                while (block.hasRemaining()) {
+                    channel.write(block, position + block.position());
+                }
+            }
+            channel.force(true);
+        }
+    }
+    
+    private static String describeStore(Path dir) {
+        try {
+            FileStore store = Files.getFileStore(dir);
+            return store.type() + " " + store.name();
+        } catch (IOException e) {
+            return "unknown file system";
+        }
+    }
+    
+    // Sums the bytes allocated by all threads while it runs. The sampler keeps the last
+    // count of every thread, so threads that end early are included up to their last sample.
+    private static final class AllocationMeter {
+        private final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final Map<Long, Long> baseline = new HashMap<>();
+        private final Map<Long, Long> latest = new ConcurrentHashMap<>();
+        private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "allocation-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private volatile long samplerId = -1;
+        
+        AllocationMeter() {
+            sample(baseline);
+            sampler.scheduleAtFixedRate(() -> {
+                samplerId = Thread.currentThread().getId();
+                sample(latest);
+            }, 0, 5, TimeUnit.MILLISECONDS);
+        }
+        
+        long stop() {
+            sampler.shutdownNow();
+            try {
+                sampler.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sample(latest);
+            long total = 0;
+            for (Map.Entry<Long, Long> thread : latest.entrySet()) {
+                if (thread.getKey() != samplerId) {
+                    total += thread.getValue() - baseline.getOrDefault(thread.getKey(), 0L);
+                }
+            }
+            return total;
+        }
+        
+        private void sample(Map<Long, Long> into) {
+            long[] ids = threads.getAllThreadIds();
+            long[] bytes = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] >= 0) {
+                    into.put(ids[i], bytes[i]);
+                }
+            }
+        }
     }
 }
\ No newline at end of file